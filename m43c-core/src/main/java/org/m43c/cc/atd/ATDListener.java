@@ -0,0 +1,29 @@
+package org.m43c.cc.atd;
+
+import java.util.Collection;
+
+/**
+ * Receives notifications about the changes applied to {@link MultiQueueATD}.
+ * 
+ * <p>
+ * The methods are invoked while the ATD lock is held, so implementations
+ * should return quickly and never call the ATD back. The queues collection is
+ * null for the entities distributed to all queues.
+ */
+public interface ATDListener<K, P, T> {
+
+    void onTaskDistributed(T t, Collection<K> queues);
+
+    void onTaskCancelled(T t);
+
+    void onProcRegistered(P p, Collection<K> queues);
+
+    void onProcUnregistered(P p);
+
+    void onProcPaused(P p);
+
+    void onProcResumed(P p);
+
+    void onOfferDone(T t, P p, boolean accepted);
+
+}
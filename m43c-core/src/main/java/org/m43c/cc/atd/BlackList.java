@@ -0,0 +1,87 @@
+package org.m43c.cc.atd;
+
+import java.util.Arrays;
+
+/**
+ * Small black list with the capacity and the time-to-live limits defined by
+ * {@link BlackListPolicy}.
+ * 
+ * <p>
+ * The entries are kept in two parallel arrays in the order they were added,
+ * the oldest entry is evicted when the capacity is reached. The lists are
+ * expected to be short, so the linear scan is cheaper than hashing.
+ */
+final class BlackList<B> {
+
+    private final BlackListPolicy policy;
+
+    private Object[] entries = new Object[2];
+
+    private long[] addedAt = new long[2];
+
+    private int size;
+
+    BlackList(BlackListPolicy policy) {
+        this.policy = policy;
+    }
+
+    boolean contains(B b) {
+        long expirationTime = policy.getExpirationTime();
+        for (int i = size - 1; i >= 0 && addedAt[i] > expirationTime; i--) {
+            if (entries[i].equals(b)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void add(B b) {
+        long now = policy.getTime();
+        removeExpired();
+        for (int i = 0; i < size; i++) {
+            if (entries[i].equals(b)) {
+                removeAt(i);
+                break;
+            }
+        }
+        while (size >= policy.getCapacity()) {
+            removeAt(0);
+        }
+        if (size == entries.length) {
+            int newLength = Math.min(size << 1, Math.max(policy.getCapacity(), 2));
+            entries = Arrays.copyOf(entries, newLength);
+            addedAt = Arrays.copyOf(addedAt, newLength);
+        }
+        entries[size] = b;
+        addedAt[size++] = now;
+    }
+
+    int size() {
+        long expirationTime = policy.getExpirationTime();
+        int result = 0;
+        for (int i = size - 1; i >= 0 && addedAt[i] > expirationTime; i--) {
+            result++;
+        }
+        return result;
+    }
+
+    private void removeExpired() {
+        long expirationTime = policy.getExpirationTime();
+        int expired = 0;
+        while (expired < size && addedAt[expired] <= expirationTime) {
+            expired++;
+        }
+        if (expired > 0) {
+            System.arraycopy(entries, expired, entries, 0, size - expired);
+            System.arraycopy(addedAt, expired, addedAt, 0, size - expired);
+            Arrays.fill(entries, size - expired, size, null);
+            size -= expired;
+        }
+    }
+
+    private void removeAt(int idx) {
+        System.arraycopy(entries, idx + 1, entries, idx, size - idx - 1);
+        System.arraycopy(addedAt, idx + 1, addedAt, idx, size - idx - 1);
+        entries[--size] = null;
+    }
+}
@@ -0,0 +1,71 @@
+package org.m43c.cc.atd;
+
+import org.jrivets.env.TimeSource;
+
+/**
+ * Limits of the task black lists shared by all holders of an ATD. Accessed
+ * under the ATD lock only.
+ * 
+ * <p>
+ * The expiration checks and the new entries use the time cached by
+ * {@code tick()}, so the time source is not read on every check during a queue
+ * scan, and is not read at all if there is no TTL. By default the lists are
+ * not limited.
+ */
+final class BlackListPolicy {
+
+    static final int NO_CAPACITY_LIMIT = Integer.MAX_VALUE;
+
+    static final long NO_TTL = Long.MAX_VALUE;
+
+    private final TimeSource timeSource;
+
+    private int capacity = NO_CAPACITY_LIMIT;
+
+    private long ttlMs = NO_TTL;
+
+    private long nowMs;
+
+    BlackListPolicy(TimeSource timeSource) {
+        this.timeSource = timeSource;
+    }
+
+    void setLimits(int capacity, long ttlMs) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Black list capacity should be positive, but " + capacity);
+        }
+        if (ttlMs < 1) {
+            throw new IllegalArgumentException("Black list TTL should be positive, but " + ttlMs);
+        }
+        this.capacity = capacity;
+        this.ttlMs = ttlMs;
+        if (ttlMs == NO_TTL) {
+            nowMs = 0L;
+        }
+        tick();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    void tick() {
+        if (ttlMs != NO_TTL) {
+            nowMs = timeSource.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return the time cached by the last {@code tick()}, 0 if there is no TTL
+     */
+    long getTime() {
+        return nowMs;
+    }
+
+    /**
+     * @return the entries added at this time or before are expired
+     */
+    long getExpirationTime() {
+        return ttlMs == NO_TTL ? Long.MIN_VALUE : nowMs - ttlMs;
+    }
+}
@@ -1,30 +1,49 @@
 package org.m43c.cc.atd;
 
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
 
-final class EntityHolder<A, B> implements QueueEntity<EntityHolder<B, A>> {
+final class EntityHolder<A, B> extends TimerWheel.Timer implements QueueEntity<EntityHolder<B, A>> {
     
     private final A entity;
     
-    private final Collection<?> queues;
+    private Collection<?> queues;
     
     private final Offerer<EntityHolder<A, B>, EntityHolder<B, A>> offerer;
     
-    private Set<B> blackList;
+    private final long seqNo;
+    
+    private SortKeyExtractor<A> sortKeyExtractor;
+    
+    private long sortKey;
+    
+    private BlackList<B> blackList;
     
     private boolean cancelled;
     
-    EntityHolder(A entity, Collection<?> queues, Offerer<EntityHolder<A, B>, EntityHolder<B, A>> offerer) {
+    private boolean paused;
+    
+    private boolean offered;
+    
+    private long waitingSince;
+    
+    private boolean timerFired;
+    
+    private B reservedFor;
+    
+    private long rejectionsRound;
+    
+    private int roundRejections;
+    
+    EntityHolder(A entity, Collection<?> queues, Offerer<EntityHolder<A, B>, EntityHolder<B, A>> offerer, long seqNo) {
         this.entity = entity;
         this.queues = queues;
         this.offerer = offerer;
+        this.seqNo = seqNo;
     }
     
     @Override
     public boolean isAcceptableFor(EntityHolder<B, A> entity) {
-        return !cancelled && (blackList == null || !blackList.contains(entity.entity));
+        return !cancelled && !paused && (blackList == null || !blackList.contains(entity.entity));
     }
 
     @Override
@@ -48,19 +67,118 @@ final class EntityHolder<A, B> implements QueueEntity<EntityHolder<B, A>> {
         return (Collection<K>) queues;
     }
     
-    void addToBlackList(B b) {
+    /**
+     * @return the holder registration order number
+     */
+    long getSeqNo() {
+        return seqNo;
+    }
+    
+    /**
+     * Returns the key calculated by the extractor. The key is calculated only
+     * once, the ATD guarantees that the same extractor is used for all keyed
+     * queues.
+     */
+    long getSortKey(SortKeyExtractor<A> extractor) {
+        if (sortKeyExtractor != extractor) {
+            sortKey = extractor.sortKey(entity);
+            sortKeyExtractor = extractor;
+        }
+        return sortKey;
+    }
+    
+    void setQueues(Collection<?> queues) {
+        this.queues = queues;
+    }
+    
+    /**
+     * @return true if the holder is bound to the queue with the key
+     */
+    boolean isEligibleFor(Object key) {
+        return queues == null || queues.contains(key);
+    }
+    
+    /**
+     * @return the time the task was distributed or the processor became
+     *         idle, 0 if the task is not tracked for starvation
+     */
+    long getWaitingSince() {
+        return waitingSince;
+    }
+    
+    void setWaitingSince(long waitingSince) {
+        this.waitingSince = waitingSince;
+    }
+    
+    boolean isTimerFired() {
+        return timerFired;
+    }
+    
+    void setTimerFired(boolean timerFired) {
+        this.timerFired = timerFired;
+    }
+    
+    void addToBlackList(B b, BlackListPolicy policy) {
         if (blackList == null) {
-            blackList = new HashSet<B>(1);
+            blackList = new BlackList<B>(policy);
         }
         blackList.add(b);
     }
     
+    /**
+     * Counts the task rejection within the round.
+     * 
+     * @return number of the task rejections in the round including this one
+     */
+    int countRejection(long round) {
+        if (rejectionsRound != round) {
+            rejectionsRound = round;
+            roundRejections = 0;
+        }
+        return ++roundRejections;
+    }
+    
     void cancel() {
         cancelled = true;
     }
+    
+    void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+    
+    boolean isPaused() {
+        return paused;
+    }
+    
+    /**
+     * The processor holder is removed from all queues while it is reserved for
+     * the expected task.
+     */
+    void setReservedFor(B reservedFor) {
+        this.reservedFor = reservedFor;
+    }
+    
+    B getReservedFor() {
+        return reservedFor;
+    }
+    
+    boolean isReserved() {
+        return reservedFor != null;
+    }
+    
+    /**
+     * The holder is removed from all queues while it is offered.
+     */
+    void setOffered(boolean offered) {
+        this.offered = offered;
+    }
+    
+    boolean isOffered() {
+        return offered;
+    }
 
     @Override
     public String toString() {
-        return "{entity=" + entity + ", cancelled=" + cancelled + ", blackListSize=" + blackList.size() +"}";
+        return "{entity=" + entity + ", cancelled=" + cancelled + ", paused=" + paused + ", blackListSize=" + (blackList == null ? 0 : blackList.size()) +"}";
     }
 }
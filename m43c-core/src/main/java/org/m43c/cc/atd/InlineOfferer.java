@@ -0,0 +1,18 @@
+package org.m43c.cc.atd;
+
+/**
+ * The {@link Offerer} which completes the offer immediately, without blocking.
+ * 
+ * <p>
+ * {@link MultiQueueATD} invokes the inline offerer directly when a task and a
+ * processor are matched, with the ATD lock held, instead of handing the offer
+ * to the executor. The offerer must not block and must not invoke the ATD.
+ * Rejected pairs are put back to the queues within the same ATD operation. A
+ * task which is rejected as many times as the black list capacity within one
+ * operation is put back without being offered and waits for the next put to
+ * its queues, so an operation is always finite. The inline offers make the ATD
+ * deterministic if it is driven by one thread only, like in simulations.
+ */
+public interface InlineOfferer<T, P> extends Offerer<T, P> {
+
+}
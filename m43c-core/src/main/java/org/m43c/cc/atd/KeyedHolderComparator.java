@@ -0,0 +1,25 @@
+package org.m43c.cc.atd;
+
+import java.util.Comparator;
+
+final class KeyedHolderComparator<T, P> implements Comparator<EntityHolder<T, P>> {
+
+    private final SortKeyExtractor<T> extractor;
+
+    KeyedHolderComparator(SortKeyExtractor<T> extractor) {
+        this.extractor = extractor;
+    }
+
+    @Override
+    public int compare(EntityHolder<T, P> o1, EntityHolder<T, P> o2) {
+        long k1 = o1.getSortKey(extractor);
+        long k2 = o2.getSortKey(extractor);
+        if (k1 != k2) {
+            return k1 < k2 ? -1 : 1;
+        }
+        long s1 = o1.getSeqNo();
+        long s2 = o2.getSeqNo();
+        return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+    }
+
+}
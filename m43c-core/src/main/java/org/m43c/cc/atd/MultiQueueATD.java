@@ -1,23 +1,41 @@
 package org.m43c.cc.atd;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.locks.Lock;
 
+import org.jrivets.env.TimeSource;
 import org.jrivets.log.Logger;
 
 import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
 
 public final class MultiQueueATD<K, P, T> {
 
+    private static final TimeSource SYSTEM_TIME = new TimeSource() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private static final long RESERVATION_TICK_MS = 10L;
+
     private final Map<T, EntityHolder<T, P>> tasks = new HashMap<T, EntityHolder<T, P>>();
 
     private final Map<P, EntityHolder<P, T>> processors = new HashMap<P, EntityHolder<P, T>>();
 
     private final Map<K, Queue<K, T, P>> queues = new HashMap<K, Queue<K, T, P>>();
 
+    private final Map<T, EntityHolder<P, T>> reservations = new HashMap<T, EntityHolder<P, T>>();
+
+    private final List<EntityHolder<P, T>> expiredReservations = new ArrayList<EntityHolder<P, T>>();
+
     private final Logger logger;
 
     private final Lock lock;
@@ -28,13 +46,49 @@ public final class MultiQueueATD<K, P, T> {
 
     private final HoldersOfferer holdersOfferer = new HoldersOfferer();
 
+    private final boolean inlineOffers;
+
+    private final ArrayDeque<OfferTask> doneOffers = new ArrayDeque<OfferTask>();
+
+    private long completionRound;
+
+    private final BlackListPolicy blackListPolicy;
+
+    private final TimeSource timeSource;
+
+    private StarvationListener<P, T> starvationListener;
+
+    private TimerWheel<EntityHolder<T, P>> taskTimers;
+
+    private TimerWheel<EntityHolder<P, T>> procTimers;
+
+    private TimerWheel<EntityHolder<P, T>> reservationTimers;
+
+    private long procIdleLimitMs;
+
+    private ATDListener<K, P, T> listener;
+
+    private int rebalanceBatchSize = 1000;
+
+    private long holderSeqNo;
+
     private class HoldersOfferer implements Offerer<EntityHolder<T, P>, EntityHolder<P, T>> {
 
         @Override
         public boolean offer(EntityHolder<T, P> tHolder, EntityHolder<P, T> pHolder) {
             removeTaskHolderFromQueues(tHolder);
             removeProcHolderFromQueues(pHolder);
-            executor.execute(new OfferTask(tHolder, pHolder));
+            disarmTimers(tHolder, pHolder);
+            tHolder.setOffered(true);
+            pHolder.setOffered(true);
+            OfferTask offerTask = new OfferTask(tHolder, pHolder);
+            if (inlineOffers) {
+                // completed by the invoking ATD operation, see completeOffers()
+                offerTask.offerResult = offerTask.makeOffer();
+                doneOffers.add(offerTask);
+            } else {
+                executor.execute(offerTask);
+            }
             return true;
         }
     }
@@ -43,6 +97,7 @@ public final class MultiQueueATD<K, P, T> {
 
         private final EntityHolder<T, P> tHolder;
         private final EntityHolder<P, T> pHolder;
+        private boolean offerResult;
 
         OfferTask(EntityHolder<T, P> tHolder, EntityHolder<P, T> pHolder) {
             this.tHolder = tHolder;
@@ -54,6 +109,7 @@ public final class MultiQueueATD<K, P, T> {
             boolean offerResult = makeOffer();
             lock.lock();
             try {
+                blackListPolicy.tick();
                 onOfferDone(offerResult);
             } finally {
                 lock.unlock();
@@ -70,23 +126,52 @@ public final class MultiQueueATD<K, P, T> {
         }
 
         private void onOfferDone(boolean offerResult) {
+            if (listener != null) {
+                notifyOfferDone(tHolder.getEntity(), pHolder.getEntity(), offerResult);
+            }
+            tHolder.setOffered(false);
+            pHolder.setOffered(false);
             if (offerResult) {
                 tasks.remove(tHolder.getEntity());
                 processors.remove(pHolder.getEntity());
                 return;
             }
-            tHolder.addToBlackList(pHolder.getEntity());
-            putTaskHolderToQueuesSafely(tHolder);
+            tHolder.addToBlackList(pHolder.getEntity(), blackListPolicy);
+            armTaskTimer(tHolder);
+            armProcTimer(pHolder);
+            if (inlineOffers && tHolder.countRejection(completionRound) >= blackListPolicy.getCapacity()) {
+                // the task has cycled through its black list within the
+                // operation, it waits for the next put to be offered again
+                parkTaskHolderInQueues(tHolder);
+            } else {
+                putTaskHolderToQueuesSafely(tHolder);
+            }
             putProcHolderToQueuesSafely(pHolder);
         }
 
     }
 
     public MultiQueueATD(Logger logger, Lock lock, ExecutorService executor, Offerer<T, P> offerer) {
+        this(logger, lock, executor, offerer, SYSTEM_TIME);
+    }
+
+    /**
+     * @param executor
+     *            - the executor of the offers, can be null if the offerer is
+     *            an {@link InlineOfferer}
+     * @param timeSource
+     *            - the time source for the time-dependent limits, like the
+     *            black lists expiration and the starvation detection.
+     */
+    public MultiQueueATD(Logger logger, Lock lock, ExecutorService executor, Offerer<T, P> offerer,
+            TimeSource timeSource) {
         this.logger = logger;
         this.lock = lock;
         this.executor = executor;
         this.offerer = offerer;
+        this.inlineOffers = offerer instanceof InlineOfferer;
+        this.blackListPolicy = new BlackListPolicy(timeSource);
+        this.timeSource = timeSource;
     }
 
     public void distributeTask(T t) {
@@ -99,7 +184,15 @@ public final class MultiQueueATD<K, P, T> {
             if (tasks.containsKey(t)) {
                 throw new IllegalArgumentException("Cannot register the same task twice.");
             }
+            blackListPolicy.tick();
+            if (!reservations.isEmpty()) {
+                expireReservations(timeSource.currentTimeMillis());
+            }
             registerTaskInternal(t, queues);
+            if (listener != null) {
+                notifyTaskDistributed(t, queues);
+            }
+            completeOffers();
         } finally {
             lock.unlock();
         }
@@ -108,7 +201,11 @@ public final class MultiQueueATD<K, P, T> {
     public boolean cancelTask(T t) {
         lock.lock();
         try {
-            return cancelTaskInternal(t);
+            boolean result = cancelTaskInternal(t);
+            if (result && listener != null) {
+                notifyTaskCancelled(t);
+            }
+            return result;
         } finally {
             lock.unlock();
         }
@@ -124,7 +221,12 @@ public final class MultiQueueATD<K, P, T> {
             if (processors.containsKey(p)) {
                 throw new IllegalArgumentException("Cannot register the same processor twice.");
             }
+            blackListPolicy.tick();
             registerProcInternal(p, queues);
+            if (listener != null) {
+                notifyProcRegistered(p, queues);
+            }
+            completeOffers();
         } finally {
             lock.unlock();
         }
@@ -133,41 +235,643 @@ public final class MultiQueueATD<K, P, T> {
     public boolean unregisterProc(P p) {
         lock.lock();
         try {
-            return cancelProcInternal(p);
+            boolean result = cancelProcInternal(p);
+            if (result && listener != null) {
+                notifyProcUnregistered(p);
+            }
+            return result;
         } finally {
             lock.unlock();
         }
     }
     
+    /**
+     * Makes the processor unavailable for new tasks keeping it registered in
+     * all its queues with its black list. The processor reservation, if any,
+     * is released.
+     * 
+     * @return false if the processor is not registered
+     */
+    public boolean pauseProc(P p) {
+        lock.lock();
+        try {
+            EntityHolder<P, T> holder = processors.get(p);
+            if (holder == null) {
+                return false;
+            }
+            if (!holder.isPaused()) {
+                holder.setPaused(true);
+                if (holder.isReserved()) {
+                    takeReservation(holder.getReservedFor());
+                    putProcHolderToQueuesSafely(holder);
+                } else if (procTimers != null) {
+                    procTimers.disarm(holder);
+                }
+                if (listener != null) {
+                    notifyProcPaused(p);
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the paused processor available again and immediately offers it
+     * the best acceptable task, if any.
+     * 
+     * @return false if the processor is not registered
+     */
+    public boolean resumeProc(P p) {
+        lock.lock();
+        try {
+            EntityHolder<P, T> holder = processors.get(p);
+            if (holder == null) {
+                return false;
+            }
+            if (holder.isPaused()) {
+                holder.setPaused(false);
+                if (listener != null) {
+                    notifyProcResumed(p);
+                }
+                if (!holder.isOffered()) {
+                    blackListPolicy.tick();
+                    armProcTimer(holder);
+                    offerProcHolder(holder);
+                    completeOffers();
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserves the best available processor for the expected task. The queues
+     * are looked through in the collection order, or in any order if the
+     * collection is null, and the first acceptable processor of the first
+     * queue which has one is reserved. The reserved processor does not get
+     * other tasks and the task is offered to it directly when distributed. The
+     * reservation is released if the task is not distributed within the
+     * timeout, so the timeout should cover the task expected arrival time.
+     * 
+     * @return the reserved processor, or null if there is no available one
+     * @throws IllegalArgumentException
+     *             if the task is distributed or has the reservation already
+     */
+    public P reserveProc(T t, ImmutableCollection<K> queues, long timeoutMs) {
+        if (t == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            if (tasks.containsKey(t) || reservations.containsKey(t)) {
+                throw new IllegalArgumentException("The task is distributed or has the reservation already.");
+            }
+            blackListPolicy.tick();
+            long now = timeSource.currentTimeMillis();
+            if (reservationTimers == null) {
+                reservationTimers = new TimerWheel<EntityHolder<P, T>>(RESERVATION_TICK_MS, now);
+            }
+            expireReservations(now);
+            completeOffers();
+            EntityHolder<P, T> holder = findProcHolder(t, queues);
+            if (holder == null) {
+                return null;
+            }
+            removeProcHolderFromQueues(holder);
+            // the reserved processor is not idle, its timer is used for the reservation
+            if (procTimers != null) {
+                procTimers.disarm(holder);
+            }
+            holder.setReservedFor(t);
+            reservations.put(t, holder);
+            reservationTimers.arm(holder, now + timeoutMs);
+            return holder.getEntity();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the processor reserved for the task, so it is available for
+     * any task again.
+     * 
+     * @return false if there is no reservation for the task
+     */
+    public boolean releaseProc(T t) {
+        lock.lock();
+        try {
+            EntityHolder<P, T> holder = takeReservation(t);
+            if (holder == null) {
+                return false;
+            }
+            blackListPolicy.tick();
+            releaseProcHolder(holder);
+            completeOffers();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registers the queue and puts there all waiting tasks and processors
+     * which are distributed to all queues or to the queue key explicitly,
+     * matching them immediately.
+     * 
+     * <p>
+     * The waiting entities are put to the queue in batches of
+     * {@code rebalanceBatchSize}, the ATD lock is released between the
+     * batches, so the invoker must not hold the lock. The tasks go first, so
+     * every processor gets the best acceptable task of the queue.
+     */
     public void addQueue(Queue<K, T, P> queue) {
+        List<EntityHolder<T, P>> waitingTasks;
+        List<EntityHolder<P, T>> waitingProcs;
+        int batchSize;
         lock.lock();
         try {
             if (queues.containsKey(queue.getKey())) {
                 throw new IllegalStateException("The queue with " + queue.getKey() + " is already registered in the ATD.");
             }
+            checkKeyExtractors(queue);
             queues.put(queue.getKey(), queue);
+            waitingTasks = getEligibleHolders(tasks.values(), queue.getKey());
+            waitingProcs = getEligibleHolders(processors.values(), queue.getKey());
+            batchSize = rebalanceBatchSize;
         } finally {
             lock.unlock();
         }
+        backfillTasks(queue, waitingTasks, batchSize);
+        backfillProcs(queue, waitingProcs, batchSize);
     }
-    
+
+    /**
+     * Removes the queue. The tasks and processors which are bound to the
+     * removed queue only stay registered and join the queue with the same key
+     * when it is added again, their number is logged as a warning.
+     * 
+     * @return false if there is no queue with the key
+     * @see #removeQueue(Object, Object)
+     * @see #removeQueue(Object, Collection, Collection)
+     */
     public boolean removeQueue(K key) {
+        return removeQueueInternal(key, null, null, null);
+    }
+
+    /**
+     * Removes the queue and moves the tasks and processors which are bound to
+     * the removed queue only to the fallback queue. The entities which are
+     * being offered and the reserved processors are moved there when they are
+     * released.
+     * 
+     * @return false if there is no queue with the key
+     * @throws IllegalArgumentException
+     *             if the fallback queue is not registered
+     */
+    public boolean removeQueue(K key, K fallbackKey) {
+        if (fallbackKey == null) {
+            throw new NullPointerException();
+        }
+        return removeQueueInternal(key, fallbackKey, null, null);
+    }
+
+    /**
+     * Removes the queue, unregisters the tasks and processors which are bound
+     * to the removed queue only and returns them through the provided
+     * collections. The entities which are being offered and the reserved
+     * processors are not returned, they stay registered in no queue, as with
+     * {@link #removeQueue(Object)}, and their number is logged as a warning.
+     * 
+     * @return false if there is no queue with the key
+     */
+    public boolean removeQueue(K key, Collection<? super T> orphanedTasks, Collection<? super P> orphanedProcs) {
+        if (orphanedTasks == null || orphanedProcs == null) {
+            throw new NullPointerException();
+        }
+        return removeQueueInternal(key, null, orphanedTasks, orphanedProcs);
+    }
+
+    /**
+     * Sets the maximum number of tasks or processors which are moved while
+     * the ATD lock is held when a queue is added or removed.
+     */
+    public void setRebalanceBatchSize(int rebalanceBatchSize) {
+        if (rebalanceBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size should be positive, but " + rebalanceBatchSize);
+        }
+        lock.lock();
+        try {
+            this.rebalanceBatchSize = rebalanceBatchSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Limits the task black lists. A task remembers up to {@code capacity}
+     * processors which have rejected it, the oldest one is forgotten when the
+     * capacity is reached, and every rejection is forgotten in {@code ttlMs}
+     * anyway. {@code Integer.MAX_VALUE} and {@code Long.MAX_VALUE} mean no
+     * limit, by default the lists are not limited.
+     * 
+     * <p>
+     * A forgotten rejection doesn't cause a new offer by itself: the task and
+     * the processor can be matched again when either of them or another
+     * entity is put to their queue (distribution, registration, resume,
+     * another offer completion). With a limited capacity a task which is
+     * rejected by more processors than the capacity is offered to them again
+     * and again, with an {@link InlineOfferer} at most {@code capacity} times
+     * within one operation. The rejections made while there is no TTL expire
+     * right after the TTL is set.
+     */
+    public void setBlackListLimits(int capacity, long ttlMs) {
+        lock.lock();
+        try {
+            blackListPolicy.setLimits(capacity, ttlMs);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Enables the detection of the starving tasks and the idle processors, or
+     * disables it if the listener is null. The limits are tracked by a timing
+     * wheel with the provided resolution, the wheel is moved by
+     * {@code checkTimers()}.
+     * 
+     * <p>
+     * Only the tasks distributed and the processors which became idle after
+     * the detection is enabled are tracked. Setting the listener again resets
+     * the tracking the same way.
+     */
+    public void setStarvationListener(StarvationListener<P, T> starvationListener, long resolutionMs) {
+        lock.lock();
+        try {
+            TimerWheel<EntityHolder<T, P>> newTaskTimers = null;
+            TimerWheel<EntityHolder<P, T>> newProcTimers = null;
+            if (starvationListener != null) {
+                long now = timeSource.currentTimeMillis();
+                newTaskTimers = new TimerWheel<EntityHolder<T, P>>(resolutionMs, now);
+                newProcTimers = new TimerWheel<EntityHolder<P, T>>(resolutionMs, now);
+            }
+            if (taskTimers != null) {
+                // the holders are linked into the wheels, unlink them before
+                // the wheels are dropped
+                taskTimers.clear();
+                procTimers.clear();
+            }
+            for (EntityHolder<T, P> holder : tasks.values()) {
+                // not tracked, even if rejected after the call
+                holder.setWaitingSince(0L);
+            }
+            this.starvationListener = starvationListener;
+            this.taskTimers = newTaskTimers;
+            this.procTimers = newProcTimers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the time a task can wait in the queue before it is reported as
+     * starving, 0 disables the limit. A task in many queues is limited by the
+     * lowest limit of them. The limit is applied to the tasks distributed
+     * after the call.
+     * 
+     * @throws IllegalArgumentException
+     *             if the queue is not registered
+     */
+    public void setTaskWaitLimit(K key, long limitMs) {
+        lock.lock();
+        try {
+            Queue<K, T, P> queue = queues.get(key);
+            if (queue == null) {
+                throw new IllegalArgumentException("The queue with " + key + " is not registered in the ATD.");
+            }
+            queue.setWaitLimit(Math.max(limitMs, 0L));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the time a processor can stay idle before it is reported, 0
+     * disables the limit. The idle period starts when the processor is
+     * registered, resumed, released from the reservation or has rejected a
+     * task.
+     */
+    public void setProcIdleLimit(long limitMs) {
         lock.lock();
         try {
+            this.procIdleLimitMs = Math.max(limitMs, 0L);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the starvation detection timers to the current time and notifies
+     * the listener about the expired limits, releases the expired processor
+     * reservations. Should be invoked periodically, with the timers resolution
+     * or so. The listener is invoked by the invoking thread without the ATD
+     * lock held.
+     */
+    public void checkTimers() {
+        List<EntityHolder<T, P>> starvingTasks = new ArrayList<EntityHolder<T, P>>();
+        List<EntityHolder<P, T>> idleProcs = new ArrayList<EntityHolder<P, T>>();
+        StarvationListener<P, T> listener;
+        long now;
+        lock.lock();
+        try {
+            now = timeSource.currentTimeMillis();
+            if (!reservations.isEmpty()) {
+                blackListPolicy.tick();
+                expireReservations(now);
+                completeOffers();
+            }
+            listener = starvationListener;
+            if (listener == null) {
+                return;
+            }
+            taskTimers.advance(now, starvingTasks);
+            procTimers.advance(now, idleProcs);
+            for (EntityHolder<T, P> holder : starvingTasks) {
+                holder.setTimerFired(true);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (EntityHolder<T, P> holder : starvingTasks) {
+            try {
+                listener.onTaskStarving(holder.getEntity(), now - holder.getWaitingSince());
+            } catch (Throwable e) {
+                logger.error("Exception while notifying about starving task ", holder, e);
+            }
+        }
+        for (EntityHolder<P, T> holder : idleProcs) {
+            try {
+                listener.onProcIdle(holder.getEntity(), now - holder.getWaitingSince());
+            } catch (Throwable e) {
+                logger.error("Exception while notifying about idle processor ", holder, e);
+            }
+        }
+    }
+
+    /**
+     * Sets the listener of the ATD changes, null removes the current one.
+     */
+    public void setListener(ATDListener<K, P, T> listener) {
+        lock.lock();
+        try {
+            this.listener = listener;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Completes the inline offers made by the current operation. The
+     * rejected pairs are put back to the queues here, so the offers they get
+     * are completed by the same loop instead of nested puts. A task rejected
+     * as many times as the black list capacity is put back without being
+     * offered, so the loop is finite even if the black list forgets the
+     * rejecting processors.
+     */
+    private void completeOffers() {
+        if (doneOffers.isEmpty()) {
+            return;
+        }
+        completionRound++;
+        OfferTask offerTask;
+        while ((offerTask = doneOffers.poll()) != null) {
+            offerTask.onOfferDone(offerTask.offerResult);
+        }
+    }
+
+    private void checkKeyExtractors(Queue<K, T, P> queue) {
+        if (queue.getTKeyExtractor() == null) {
+            return;
+        }
+        for (Queue<K, T, P> q : queues.values()) {
+            if (q.getTKeyExtractor() != null
+                    && (q.getTKeyExtractor() != queue.getTKeyExtractor() || q.getPKeyExtractor() != queue
+                            .getPKeyExtractor())) {
+                throw new IllegalArgumentException("The queue " + queue.getKey()
+                        + " sort key extractors differ from the extractors of the registered queue " + q.getKey());
+            }
+        }
+    }
+
+    private boolean removeQueueInternal(K key, K fallbackKey, Collection<? super T> orphanedTasks,
+            Collection<? super P> orphanedProcs) {
+        List<EntityHolder<T, P>> queuedTasks;
+        List<EntityHolder<P, T>> queuedProcs;
+        int batchSize;
+        lock.lock();
+        try {
+            if (fallbackKey != null && (fallbackKey.equals(key) || !queues.containsKey(fallbackKey))) {
+                throw new IllegalArgumentException("The fallback queue " + fallbackKey + " is not registered.");
+            }
             Queue<K, T, P> queue = queues.remove(key);
-            if (queue != null) {
-                queue.getQueue().clear();
+            if (queue == null) {
+                return false;
             }
-            return queue != null;
+            // the offered and reserved holders are not in the queue sets
+            queuedTasks = getOrphanHolders(tasks.values(), key);
+            queuedProcs = getOrphanHolders(processors.values(), key);
+            queue.getQueue().clear();
+            batchSize = rebalanceBatchSize;
         } finally {
             lock.unlock();
         }
+        ImmutableList<K> fallback = fallbackKey == null ? null : ImmutableList.of(fallbackKey);
+        int strandedTasks = 0;
+        int strandedProcs = 0;
+        for (int idx = 0; idx < queuedTasks.size(); idx += batchSize) {
+            lock.lock();
+            try {
+                blackListPolicy.tick();
+                for (EntityHolder<T, P> holder : batch(queuedTasks, idx, batchSize)) {
+                    if (tasks.get(holder.getEntity()) == holder && isOrphan(holder)
+                            && !onTaskOrphaned(holder, fallback, orphanedTasks)) {
+                        strandedTasks++;
+                    }
+                }
+                completeOffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+        for (int idx = 0; idx < queuedProcs.size(); idx += batchSize) {
+            lock.lock();
+            try {
+                blackListPolicy.tick();
+                for (EntityHolder<P, T> holder : batch(queuedProcs, idx, batchSize)) {
+                    if (processors.get(holder.getEntity()) == holder && isOrphan(holder)
+                            && !onProcOrphaned(holder, fallback, orphanedProcs)) {
+                        strandedProcs++;
+                    }
+                }
+                completeOffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (strandedTasks > 0 || strandedProcs > 0) {
+            logger.warn("The queue ", key, " is removed, ", strandedTasks, " tasks and ", strandedProcs,
+                    " processors are not in any registered queue and wait for the queue to be added again.");
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the task stays in no registered queue
+     */
+    private boolean onTaskOrphaned(EntityHolder<T, P> holder, ImmutableList<K> fallback,
+            Collection<? super T> orphanedTasks) {
+        if (fallback != null) {
+            // the offered task goes to the fallback queue if rejected
+            holder.setQueues(fallback);
+            if (!holder.isOffered()) {
+                putTaskHolderToQueuesSafely(holder);
+            }
+            return true;
+        }
+        if (orphanedTasks == null || holder.isOffered()) {
+            return false;
+        }
+        cancelTaskInternal(holder.getEntity());
+        orphanedTasks.add(holder.getEntity());
+        if (listener != null) {
+            notifyTaskCancelled(holder.getEntity());
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the processor stays in no registered queue
+     */
+    private boolean onProcOrphaned(EntityHolder<P, T> holder, ImmutableList<K> fallback,
+            Collection<? super P> orphanedProcs) {
+        boolean busy = holder.isOffered() || holder.isReserved();
+        if (fallback != null) {
+            // the busy processor goes to the fallback queue when released
+            holder.setQueues(fallback);
+            if (!busy) {
+                putProcHolderToQueuesSafely(holder);
+            }
+            return true;
+        }
+        if (orphanedProcs == null || busy) {
+            return false;
+        }
+        cancelProcInternal(holder.getEntity());
+        orphanedProcs.add(holder.getEntity());
+        if (listener != null) {
+            notifyProcUnregistered(holder.getEntity());
+        }
+        return true;
+    }
+
+    private <H extends EntityHolder<?, ?>> List<H> getOrphanHolders(Collection<H> holders, K key) {
+        List<H> result = new ArrayList<H>();
+        for (H holder : holders) {
+            if (holder.isEligibleFor(key) && isOrphan(holder)) {
+                result.add(holder);
+            }
+        }
+        return result;
+    }
+
+    private boolean isOrphan(EntityHolder<?, ?> holder) {
+        Collection<K> holderQueues = holder.getQueues();
+        if (holderQueues == null) {
+            return false;
+        }
+        for (K key : holderQueues) {
+            if (queues.containsKey(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void backfillTasks(Queue<K, T, P> queue, List<EntityHolder<T, P>> holders, int batchSize) {
+        for (int idx = 0; idx < holders.size(); idx += batchSize) {
+            lock.lock();
+            try {
+                if (queues.get(queue.getKey()) != queue) {
+                    return;
+                }
+                blackListPolicy.tick();
+                for (EntityHolder<T, P> holder : batch(holders, idx, batchSize)) {
+                    if (tasks.get(holder.getEntity()) == holder && !holder.isOffered()) {
+                        queue.getQueue().putT(holder);
+                    }
+                }
+                completeOffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void backfillProcs(Queue<K, T, P> queue, List<EntityHolder<P, T>> holders, int batchSize) {
+        for (int idx = 0; idx < holders.size(); idx += batchSize) {
+            lock.lock();
+            try {
+                if (queues.get(queue.getKey()) != queue) {
+                    return;
+                }
+                blackListPolicy.tick();
+                for (EntityHolder<P, T> holder : batch(holders, idx, batchSize)) {
+                    if (processors.get(holder.getEntity()) == holder && !holder.isOffered() && !holder.isReserved()) {
+                        queue.getQueue().putP(holder);
+                    }
+                }
+                completeOffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static <E> List<E> batch(List<E> list, int fromIdx, int batchSize) {
+        return list.subList(fromIdx, Math.min(list.size(), fromIdx + batchSize));
+    }
+
+    private static <H extends EntityHolder<?, ?>> List<H> getEligibleHolders(Collection<H> holders, Object key) {
+        List<H> result = new ArrayList<H>();
+        for (H holder : holders) {
+            if (!holder.isOffered() && !holder.isReserved() && holder.isEligibleFor(key)) {
+                result.add(holder);
+            }
+        }
+        return result;
     }
 
     private void registerTaskInternal(T t, ImmutableCollection<K> queues) {
-        EntityHolder<T, P> holder = new EntityHolder<T, P>(t, queues, holdersOfferer);
+        EntityHolder<T, P> holder = new EntityHolder<T, P>(t, queues, holdersOfferer, holderSeqNo++);
         tasks.put(t, holder);
+        if (taskTimers != null) {
+            holder.setWaitingSince(timeSource.currentTimeMillis());
+            armTaskTimer(holder);
+        }
+        EntityHolder<P, T> reservedProc = reservations.isEmpty() ? null : takeReservation(t);
+        if (reservedProc == null) {
+            putTaskHolderToQueuesSafely(holder);
+            return;
+        }
+        if (holder.isAcceptableFor(reservedProc) && reservedProc.isAcceptableFor(holder)) {
+            holdersOfferer.offer(holder, reservedProc);
+            return;
+        }
         putTaskHolderToQueuesSafely(holder);
+        releaseProcHolder(reservedProc);
     }
 
     private boolean putTaskHolderToQueuesSafely(EntityHolder<T, P> holder) {
@@ -183,6 +887,9 @@ public final class MultiQueueATD<K, P, T> {
         EntityHolder<T, P> holder = tasks.remove(t);
         if (holder != null) {
             holder.cancel();
+            if (taskTimers != null) {
+                taskTimers.disarm(holder);
+            }
             removeTaskHolderFromQueues(holder);
             return true;
         }
@@ -190,8 +897,9 @@ public final class MultiQueueATD<K, P, T> {
     }
 
     private void registerProcInternal(P p, ImmutableCollection<K> queues) {
-        EntityHolder<P, T> holder = new EntityHolder<P, T>(p, queues, null);
+        EntityHolder<P, T> holder = new EntityHolder<P, T>(p, queues, null, holderSeqNo++);
         processors.put(p, holder);
+        armProcTimer(holder);
         putProcHolderToQueuesSafely(holder);
     }
 
@@ -208,6 +916,11 @@ public final class MultiQueueATD<K, P, T> {
         EntityHolder<P, T> holder = processors.remove(p);
         if (holder != null) {
             holder.cancel();
+            if (holder.isReserved()) {
+                takeReservation(holder.getReservedFor());
+            } else if (procTimers != null) {
+                procTimers.disarm(holder);
+            }
             removeProcHolderFromQueues(holder);
             return true;
         }
@@ -221,6 +934,10 @@ public final class MultiQueueATD<K, P, T> {
         }
         for (K key: distQueues) {
             Queue<K, T, P> queue = queues.get(key);
+            if (queue == null) {
+                // the queue is not added yet or removed
+                continue;
+            }
             if (!queue.getQueue().putT(holder)) {
                 return false;
             }
@@ -235,6 +952,9 @@ public final class MultiQueueATD<K, P, T> {
         }
         for (K key: distQueues) {
             Queue<K, T, P> queue = queues.get(key);
+            if (queue == null) {
+                continue;
+            }
             if (!queue.getQueue().putP(holder)) {
                 return false;
             }
@@ -242,6 +962,118 @@ public final class MultiQueueATD<K, P, T> {
         return true;
     }
 
+    private void parkTaskHolderInQueues(EntityHolder<T, P> holder) {
+        Collection<K> distQueues = holder.getQueues();
+        for (K key : distQueues == null ? queues.keySet() : distQueues) {
+            Queue<K, T, P> queue = queues.get(key);
+            if (queue != null) {
+                queue.getQueue().addT(holder);
+            }
+        }
+    }
+
+    private void armTaskTimer(EntityHolder<T, P> holder) {
+        if (taskTimers == null || holder.isTimerFired() || holder.getWaitingSince() == 0L) {
+            // the task is distributed before the detection is enabled
+            return;
+        }
+        long limit = Long.MAX_VALUE;
+        Collection<K> holderQueues = holder.getQueues();
+        for (Queue<K, T, P> queue : holderQueues == null ? queues.values() : getQueues(holderQueues)) {
+            if (queue.getWaitLimit() > 0L) {
+                limit = Math.min(limit, queue.getWaitLimit());
+            }
+        }
+        if (limit != Long.MAX_VALUE) {
+            taskTimers.arm(holder, holder.getWaitingSince() + limit);
+        }
+    }
+
+    private void armProcTimer(EntityHolder<P, T> holder) {
+        if (procTimers == null || procIdleLimitMs == 0L || holder.isPaused()) {
+            return;
+        }
+        long now = timeSource.currentTimeMillis();
+        holder.setWaitingSince(now);
+        procTimers.arm(holder, now + procIdleLimitMs);
+    }
+
+    private void disarmTimers(EntityHolder<T, P> tHolder, EntityHolder<P, T> pHolder) {
+        if (taskTimers != null) {
+            taskTimers.disarm(tHolder);
+            procTimers.disarm(pHolder);
+        }
+    }
+
+    private List<Queue<K, T, P>> getQueues(Collection<K> keys) {
+        List<Queue<K, T, P>> result = new ArrayList<Queue<K, T, P>>(keys.size());
+        for (K key : keys) {
+            Queue<K, T, P> queue = queues.get(key);
+            if (queue != null) {
+                result.add(queue);
+            }
+        }
+        return result;
+    }
+
+    private EntityHolder<P, T> findProcHolder(T t, Collection<K> keys) {
+        EntityHolder<T, P> expected = new EntityHolder<T, P>(t, keys, null, -1L);
+        for (K key : keys == null ? queues.keySet() : keys) {
+            Queue<K, T, P> queue = queues.get(key);
+            if (queue == null) {
+                continue;
+            }
+            EntityHolder<P, T> holder = queue.getQueue().findP(expected);
+            if (holder != null) {
+                return holder;
+            }
+        }
+        return null;
+    }
+
+    private EntityHolder<P, T> takeReservation(T t) {
+        EntityHolder<P, T> holder = reservations.remove(t);
+        if (holder != null) {
+            reservationTimers.disarm(holder);
+            holder.setReservedFor(null);
+        }
+        return holder;
+    }
+
+    private void expireReservations(long now) {
+        if (reservationTimers == null) {
+            return;
+        }
+        reservationTimers.advance(now, expiredReservations);
+        try {
+            for (EntityHolder<P, T> holder : expiredReservations) {
+                reservations.remove(holder.getReservedFor());
+                holder.setReservedFor(null);
+                releaseProcHolder(holder);
+            }
+        } finally {
+            expiredReservations.clear();
+        }
+    }
+
+    private void releaseProcHolder(EntityHolder<P, T> holder) {
+        armProcTimer(holder);
+        putProcHolderToQueuesSafely(holder);
+    }
+
+    private void offerProcHolder(EntityHolder<P, T> holder) {
+        Collection<K> distQueues = holder.getQueues();
+        if (distQueues == null) {
+            distQueues = queues.keySet();
+        }
+        for (K key: distQueues) {
+            Queue<K, T, P> queue = queues.get(key);
+            if (queue != null && queue.getQueue().offerP(holder)) {
+                return;
+            }
+        }
+    }
+
     private void removeTaskHolderFromQueues(EntityHolder<T, P> holder) {
         for (Queue<K, T, P> queue : queues.values()) {
             queue.getQueue().removeT(holder);
@@ -253,4 +1085,60 @@ public final class MultiQueueATD<K, P, T> {
             queue.getQueue().removeP(holder);
         }
     }
+
+    private void notifyTaskDistributed(T t, Collection<K> queues) {
+        try {
+            listener.onTaskDistributed(t, queues);
+        } catch (Throwable e) {
+            logger.error("Exception while notifying listener about distribution of ", t, e);
+        }
+    }
+
+    private void notifyTaskCancelled(T t) {
+        try {
+            listener.onTaskCancelled(t);
+        } catch (Throwable e) {
+            logger.error("Exception while notifying listener about cancellation of ", t, e);
+        }
+    }
+
+    private void notifyProcRegistered(P p, Collection<K> queues) {
+        try {
+            listener.onProcRegistered(p, queues);
+        } catch (Throwable e) {
+            logger.error("Exception while notifying listener about registration of ", p, e);
+        }
+    }
+
+    private void notifyProcUnregistered(P p) {
+        try {
+            listener.onProcUnregistered(p);
+        } catch (Throwable e) {
+            logger.error("Exception while notifying listener about unregistration of ", p, e);
+        }
+    }
+
+    private void notifyProcPaused(P p) {
+        try {
+            listener.onProcPaused(p);
+        } catch (Throwable e) {
+            logger.error("Exception while notifying listener about pause of ", p, e);
+        }
+    }
+
+    private void notifyProcResumed(P p) {
+        try {
+            listener.onProcResumed(p);
+        } catch (Throwable e) {
+            logger.error("Exception while notifying listener about resume of ", p, e);
+        }
+    }
+
+    private void notifyOfferDone(T t, P p, boolean accepted) {
+        try {
+            listener.onOfferDone(t, p, accepted);
+        } catch (Throwable e) {
+            logger.error("Exception while notifying listener about offer of ", t, " to ", p, e);
+        }
+    }
 }
@@ -7,11 +7,35 @@ public final class Queue<K, T, P> {
     private final K key;
     
     private final TwoSetQueue<EntityHolder<P, T>, EntityHolder<T, P>> queue;
+    
+    private final SortKeyExtractor<T> tKeyExtractor;
+    
+    private final SortKeyExtractor<P> pKeyExtractor;
+    
+    private long waitLimitMs;
 
     public Queue(K key, Comparator<T> tComp, Comparator<P> pComp) {
         this.key = key;
         this.queue = new TwoSetQueue<EntityHolder<P,T>, EntityHolder<T,P>>(
                 new HolderComparator<P, T>(pComp), new HolderComparator<T, P>(tComp));
+        this.tKeyExtractor = null;
+        this.pKeyExtractor = null;
+    }
+    
+    /**
+     * Creates the queue ordered by the primitive keys. The keys are calculated
+     * once per entity and kept in the ATD, so all keyed queues of the same ATD
+     * must use the same extractor instances.
+     */
+    public Queue(K key, SortKeyExtractor<T> tKeyExtractor, SortKeyExtractor<P> pKeyExtractor) {
+        if (tKeyExtractor == null || pKeyExtractor == null) {
+            throw new NullPointerException();
+        }
+        this.key = key;
+        this.queue = new TwoSetQueue<EntityHolder<P,T>, EntityHolder<T,P>>(
+                new KeyedHolderComparator<P, T>(pKeyExtractor), new KeyedHolderComparator<T, P>(tKeyExtractor));
+        this.tKeyExtractor = tKeyExtractor;
+        this.pKeyExtractor = pKeyExtractor;
     }
     
     public K getKey() {
@@ -21,4 +45,20 @@ public final class Queue<K, T, P> {
     TwoSetQueue<EntityHolder<P, T>, EntityHolder<T, P>> getQueue() {
         return queue;
     }
+    
+    SortKeyExtractor<T> getTKeyExtractor() {
+        return tKeyExtractor;
+    }
+    
+    SortKeyExtractor<P> getPKeyExtractor() {
+        return pKeyExtractor;
+    }
+    
+    long getWaitLimit() {
+        return waitLimitMs;
+    }
+    
+    void setWaitLimit(long waitLimitMs) {
+        this.waitLimitMs = waitLimitMs;
+    }
 }
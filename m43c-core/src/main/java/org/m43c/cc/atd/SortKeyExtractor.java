@@ -0,0 +1,15 @@
+package org.m43c.cc.atd;
+
+/**
+ * Calculates the primitive sort key of an entity for {@link Queue} ordering.
+ * 
+ * <p>
+ * The key is calculated once per entity and must not change while the entity
+ * is registered in the ATD. Lower keys go first, the entities with the same
+ * key are ordered by the time of their registration in the ATD.
+ */
+public interface SortKeyExtractor<E> {
+
+    long sortKey(E e);
+
+}
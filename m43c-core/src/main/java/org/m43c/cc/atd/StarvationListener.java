@@ -0,0 +1,21 @@
+package org.m43c.cc.atd;
+
+/**
+ * Receives notifications about the tasks waiting in {@link MultiQueueATD}
+ * longer than the wait limits of their queues and about the processors idle
+ * longer than the idle limit.
+ * 
+ * <p>
+ * The methods are invoked from {@code MultiQueueATD.checkTimers()} without the
+ * ATD lock held, so the listener can re-distribute the task to other queues,
+ * re-prioritize it, etc. Every task is reported once, a processor is
+ * reported once per idle period. An entity can be reported even if it was
+ * matched or cancelled right after its limit expired.
+ */
+public interface StarvationListener<P, T> {
+
+    void onTaskStarving(T t, long waitingMs);
+
+    void onProcIdle(P p, long idleMs);
+
+}
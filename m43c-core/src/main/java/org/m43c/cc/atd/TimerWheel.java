@@ -0,0 +1,178 @@
+package org.m43c.cc.atd;
+
+import java.util.Collection;
+
+/**
+ * Hierarchical timing wheel of intrusive timers.
+ * 
+ * <p>
+ * The wheel has 4 levels of 64 slots each, the level 0 slot is one tick long,
+ * so the timers up to 64^4 ticks ahead are placed without any overflow. A
+ * timer is the node of the slot doubly-linked list, so arming and disarming
+ * are O(1) and do not allocate. Timers of the upper levels are cascaded down
+ * when the lower level wraps around. A timer never expires before its
+ * deadline, but can expire up to one tick later. The class is not
+ * thread-safe.
+ */
+final class TimerWheel<E extends TimerWheel.Timer> {
+
+    private static final int LEVELS = 4;
+
+    private static final int SLOT_BITS = 6;
+
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private final long tickMs;
+
+    private final Timer[][] slots = new Timer[LEVELS][SLOTS];
+
+    private long currentTick;
+
+    private int size;
+
+    static class Timer {
+
+        long deadlineTick;
+
+        Timer prev;
+
+        Timer next;
+
+        boolean isArmed() {
+            return prev != null;
+        }
+    }
+
+    TimerWheel(long tickMs, long nowMs) {
+        if (tickMs < 1) {
+            throw new IllegalArgumentException("Tick should be positive, but " + tickMs);
+        }
+        this.tickMs = tickMs;
+        this.currentTick = nowMs / tickMs;
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Timer head = new Timer();
+                head.prev = head;
+                head.next = head;
+                slots[level][slot] = head;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void arm(E timer, long deadlineMs) {
+        if (timer.isArmed()) {
+            unlink(timer);
+        } else {
+            size++;
+        }
+        timer.deadlineTick = (deadlineMs + tickMs - 1) / tickMs;
+        // the current tick slot is processed already
+        place(timer, currentTick + 1);
+    }
+
+    void disarm(E timer) {
+        if (timer.isArmed()) {
+            unlink(timer);
+            size--;
+        }
+    }
+
+    /**
+     * Disarms all timers, so they can be armed in another wheel.
+     */
+    void clear() {
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Timer head = slots[level][slot];
+                Timer timer = head.next;
+                while (timer != head) {
+                    Timer next = timer.next;
+                    timer.prev = null;
+                    timer.next = null;
+                    timer = next;
+                }
+                head.next = head;
+                head.prev = head;
+            }
+        }
+        size = 0;
+    }
+
+    /**
+     * Moves the wheel to the time and collects the expired timers.
+     */
+    @SuppressWarnings("unchecked")
+    void advance(long nowMs, Collection<? super E> expired) {
+        long targetTick = nowMs / tickMs;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, targetTick);
+            return;
+        }
+        while (currentTick < targetTick && size > 0) {
+            currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                }
+            }
+            Timer head = slots[0][(int) currentTick & SLOT_MASK];
+            while (head.next != head) {
+                Timer timer = head.next;
+                unlink(timer);
+                size--;
+                expired.add((E) timer);
+            }
+        }
+        currentTick = Math.max(currentTick, targetTick);
+    }
+
+    private void cascade(int level, int slot) {
+        Timer head = slots[level][slot];
+        Timer timer = head.next;
+        head.next = head;
+        head.prev = head;
+        while (timer != head) {
+            Timer next = timer.next;
+            // the current tick slot of level 0 is processed after cascading
+            place(timer, currentTick);
+            timer = next;
+        }
+    }
+
+    private void place(Timer timer, long minTick) {
+        long tick = Math.max(timer.deadlineTick, minTick);
+        long delta = tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        if (level == LEVELS - 1 && delta >= (1L << (SLOT_BITS * LEVELS))) {
+            // too far, will be re-placed when the top level slot is cascaded
+            tick = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+        }
+        Timer head = slots[level][(int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK];
+        timer.prev = head.prev;
+        timer.next = head;
+        head.prev.next = timer;
+        head.prev = timer;
+    }
+
+    private static void unlink(Timer timer) {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("{tickMs=").append(tickMs).append(", currentTick=").append(currentTick)
+                .append(", size=").append(size).append("}").toString();
+    }
+}
@@ -30,6 +30,30 @@ final class TwoSetQueue<P extends QueueEntity<T>, T extends QueueEntity<P>> {
         return false;
     }
     
+    /**
+     * Puts the task without trying to offer it.
+     */
+    void addT(T t) {
+        tSet.add(t);
+    }
+    
+    /**
+     * Tries to offer the processor which is already in the queue.
+     * 
+     * @return true if the offer was made
+     */
+    boolean offerP(P p) {
+        return tryToOffer(p, tSet);
+    }
+    
+    /**
+     * @return the first processor which is acceptable for the task, or null
+     *         if there is no such processor. The processor is not offered.
+     */
+    P findP(T t) {
+        return findCandidate(t, pSet);
+    }
+    
     boolean removeT(T t) {
         return tSet.remove(t);
     }
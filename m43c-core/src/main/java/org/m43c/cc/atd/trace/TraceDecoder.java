@@ -0,0 +1,15 @@
+package org.m43c.cc.atd.trace;
+
+/**
+ * Maps the trace identifiers back to the ATD entities when the trace is
+ * replayed. Must return the same entity for the same identifier.
+ */
+public interface TraceDecoder<K, P, T> {
+
+    T task(long id);
+
+    P proc(long id);
+
+    K queue(long id);
+
+}
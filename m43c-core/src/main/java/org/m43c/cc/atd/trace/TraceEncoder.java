@@ -0,0 +1,14 @@
+package org.m43c.cc.atd.trace;
+
+/**
+ * Maps the ATD entities to the identifiers stored in a trace.
+ */
+public interface TraceEncoder<K, P, T> {
+
+    long taskId(T t);
+
+    long procId(P p);
+
+    long queueId(K key);
+
+}
@@ -0,0 +1,95 @@
+package org.m43c.cc.atd.trace;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the trace written by {@link TraceWriter} record by record.
+ */
+public final class TraceReader implements Closeable {
+
+    private final DataInputStream dis;
+
+    private boolean over;
+
+    public TraceReader(File file) throws IOException {
+        this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if (dis.readInt() != TraceWriter.MAGIC) {
+                throw new IOException("The file " + file + " is not an ATD trace.");
+            }
+        } catch (IOException ioe) {
+            dis.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Reads the next record into the provided one.
+     * 
+     * @return false if there are no more records in the trace
+     */
+    public boolean next(TraceRecord record) throws IOException {
+        if (over) {
+            return false;
+        }
+        byte code;
+        try {
+            code = dis.readByte();
+        } catch (EOFException eofe) {
+            code = TraceWriter.END_OF_TRACE;
+        }
+        if (code == TraceWriter.END_OF_TRACE) {
+            over = true;
+            return false;
+        }
+        TraceRecord.Type type = TraceRecord.Type.valueOf(code);
+        if (type == null) {
+            throw new IOException("Unknown record type " + code + ", the trace is corrupted.");
+        }
+        long timeMs = dis.readLong();
+        switch (type) {
+        case DISTRIBUTE:
+            record.set(type, timeMs, dis.readLong(), 0L, false);
+            readQueues(record);
+            break;
+        case CANCEL:
+            record.set(type, timeMs, dis.readLong(), 0L, false);
+            break;
+        case REGISTER:
+            record.set(type, timeMs, 0L, dis.readLong(), false);
+            readQueues(record);
+            break;
+        case UNREGISTER:
+        case PAUSE:
+        case RESUME:
+            record.set(type, timeMs, 0L, dis.readLong(), false);
+            break;
+        case OFFER:
+            record.set(type, timeMs, dis.readLong(), dis.readLong(), dis.readByte() != 0);
+            break;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        dis.close();
+    }
+
+    private void readQueues(TraceRecord record) throws IOException {
+        int queuesCount = dis.readInt();
+        if (queuesCount < 0) {
+            return;
+        }
+        record.setQueuesCount(queuesCount);
+        for (int i = 0; i < queuesCount; i++) {
+            record.setQueueId(i, dis.readLong());
+        }
+    }
+}
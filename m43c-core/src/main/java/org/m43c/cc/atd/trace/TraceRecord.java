@@ -0,0 +1,121 @@
+package org.m43c.cc.atd.trace;
+
+import java.util.Arrays;
+
+/**
+ * One event of an ATD trace. The reader fills the same instance for every
+ * record, so the record should be copied if it is needed later.
+ */
+public final class TraceRecord {
+
+    public static enum Type {
+        DISTRIBUTE(1), CANCEL(2), REGISTER(3), UNREGISTER(4), OFFER(5), PAUSE(6), RESUME(7);
+
+        private final byte code;
+
+        private Type(int code) {
+            this.code = (byte) code;
+        }
+
+        byte getCode() {
+            return code;
+        }
+
+        static Type valueOf(byte code) {
+            for (Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    private Type type;
+
+    private long timeMs;
+
+    private long taskId;
+
+    private long procId;
+
+    private boolean accepted;
+
+    private long[] queueIds = new long[4];
+
+    private int queuesCount = -1;
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getTime() {
+        return timeMs;
+    }
+
+    /**
+     * @return the task identifier for {@code DISTRIBUTE}, {@code CANCEL} and
+     *         {@code OFFER} records
+     */
+    public long getTaskId() {
+        return taskId;
+    }
+
+    /**
+     * @return the processor identifier for {@code REGISTER},
+     *         {@code UNREGISTER}, {@code PAUSE}, {@code RESUME} and
+     *         {@code OFFER} records
+     */
+    public long getProcId() {
+        return procId;
+    }
+
+    /**
+     * @return the offer outcome for {@code OFFER} records
+     */
+    public boolean isAccepted() {
+        return accepted;
+    }
+
+    /**
+     * @return number of queues for {@code DISTRIBUTE} and {@code REGISTER}
+     *         records, or -1 if the entity is distributed to all queues
+     */
+    public int getQueuesCount() {
+        return queuesCount;
+    }
+
+    public long getQueueId(int idx) {
+        if (idx >= queuesCount) {
+            throw new IndexOutOfBoundsException("idx=" + idx + ", queuesCount=" + queuesCount);
+        }
+        return queueIds[idx];
+    }
+
+    void set(Type type, long timeMs, long taskId, long procId, boolean accepted) {
+        this.type = type;
+        this.timeMs = timeMs;
+        this.taskId = taskId;
+        this.procId = procId;
+        this.accepted = accepted;
+        this.queuesCount = -1;
+    }
+
+    void setQueuesCount(int queuesCount) {
+        if (queuesCount > queueIds.length) {
+            queueIds = Arrays.copyOf(queueIds, Math.max(queuesCount, queueIds.length << 1));
+        }
+        this.queuesCount = queuesCount;
+    }
+
+    void setQueueId(int idx, long queueId) {
+        queueIds[idx] = queueId;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("{type=").append(type).append(", timeMs=").append(timeMs)
+                .append(", taskId=").append(taskId).append(", procId=").append(procId).append(", accepted=")
+                .append(accepted).append(", queuesCount=").append(queuesCount).append("}").toString();
+    }
+}
@@ -0,0 +1,138 @@
+package org.m43c.cc.atd.trace;
+
+import java.io.IOException;
+
+import org.m43c.cc.atd.ATDListener;
+import org.m43c.cc.atd.MultiQueueATD;
+import org.m43c.simulator.Process;
+import org.m43c.simulator.SingleThreadProcessor;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Replays a trace against an ATD keeping the recorded intervals between the
+ * events in the processor virtual time.
+ * 
+ * <p>
+ * The replayer is the process for {@link SingleThreadProcessor}, so the
+ * replay speed is controlled by the processor time acceleration, up to the
+ * full-throttle mode. The recorded offer outcomes are not applied to the ATD,
+ * its own {@code Offerer} decides, but they can be observed through the
+ * listener for comparison. The replay is tolerant to the differences between
+ * the recorded and the replayed ATD states: a task or a processor which is
+ * still registered is re-registered.
+ */
+public final class TraceReplayer<K, P, T> implements Process {
+
+    private final TraceReader reader;
+
+    private final TraceDecoder<K, P, T> decoder;
+
+    private final MultiQueueATD<K, P, T> atd;
+
+    private final ATDListener<K, P, T> recordedOffersListener;
+
+    private final TraceRecord record = new TraceRecord();
+
+    private boolean started;
+
+    private long replayed;
+
+    public TraceReplayer(TraceReader reader, TraceDecoder<K, P, T> decoder, MultiQueueATD<K, P, T> atd) {
+        this(reader, decoder, atd, null);
+    }
+
+    public TraceReplayer(TraceReader reader, TraceDecoder<K, P, T> decoder, MultiQueueATD<K, P, T> atd,
+            ATDListener<K, P, T> recordedOffersListener) {
+        this.reader = reader;
+        this.decoder = decoder;
+        this.atd = atd;
+        this.recordedOffersListener = recordedOffersListener;
+    }
+
+    /**
+     * Applies all the records with the same time and returns the interval to
+     * the next one.
+     */
+    @Override
+    public long run() {
+        if (!started) {
+            started = true;
+            if (!readNext()) {
+                return -1L;
+            }
+        }
+        long timeMs = record.getTime();
+        do {
+            apply();
+            if (!readNext()) {
+                return -1L;
+            }
+        } while (record.getTime() <= timeMs);
+        return record.getTime() - timeMs;
+    }
+
+    public long getReplayedCount() {
+        return replayed;
+    }
+
+    private boolean readNext() {
+        try {
+            return reader.next(record);
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Cannot read the trace after " + replayed + " records.", ioe);
+        }
+    }
+
+    private void apply() {
+        switch (record.getType()) {
+        case DISTRIBUTE:
+            T t = decoder.task(record.getTaskId());
+            atd.cancelTask(t);
+            atd.distributeTask(t, queues());
+            break;
+        case CANCEL:
+            atd.cancelTask(decoder.task(record.getTaskId()));
+            break;
+        case REGISTER:
+            P p = decoder.proc(record.getProcId());
+            atd.unregisterProc(p);
+            atd.registerProc(p, queues());
+            break;
+        case UNREGISTER:
+            atd.unregisterProc(decoder.proc(record.getProcId()));
+            break;
+        case PAUSE:
+            atd.pauseProc(decoder.proc(record.getProcId()));
+            break;
+        case RESUME:
+            atd.resumeProc(decoder.proc(record.getProcId()));
+            break;
+        case OFFER:
+            if (recordedOffersListener != null) {
+                recordedOffersListener.onOfferDone(decoder.task(record.getTaskId()),
+                        decoder.proc(record.getProcId()), record.isAccepted());
+            }
+            break;
+        }
+        replayed++;
+    }
+
+    private ImmutableList<K> queues() {
+        int queuesCount = record.getQueuesCount();
+        if (queuesCount < 0) {
+            return null;
+        }
+        ImmutableList.Builder<K> builder = ImmutableList.builder();
+        for (int i = 0; i < queuesCount; i++) {
+            builder.add(decoder.queue(record.getQueueId(i)));
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("{replayed=").append(replayed).append(", record=").append(record)
+                .append("}").toString();
+    }
+}
@@ -0,0 +1,198 @@
+package org.m43c.cc.atd.trace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+
+import org.jrivets.env.TimeSource;
+import org.m43c.cc.atd.ATDListener;
+import org.m43c.cc.atd.MultiQueueATD;
+
+/**
+ * Writes the binary trace of {@link MultiQueueATD} events to a file.
+ * 
+ * <p>
+ * The file is written through a memory-mapped region which is re-mapped every
+ * {@code chunkSize} bytes, so a record costs few buffer puts without any
+ * system call or allocation. The writer is registered as the ATD listener and
+ * relies on the ATD lock, so it is not thread-safe by itself.
+ */
+public final class TraceWriter<K, P, T> implements ATDListener<K, P, T>, Closeable {
+
+    static final int MAGIC = 0x4D343354;
+
+    static final int HEADER_SIZE = 4;
+
+    static final byte END_OF_TRACE = 0;
+
+    private static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final TimeSource SYSTEM_TIME = new TimeSource() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final TraceEncoder<K, P, T> encoder;
+
+    private final TimeSource timeSource;
+
+    private final int chunkSize;
+
+    private MappedByteBuffer buffer;
+
+    private long chunkPosition;
+
+    public TraceWriter(File file, TraceEncoder<K, P, T> encoder) throws IOException {
+        this(file, encoder, SYSTEM_TIME, DEFAULT_CHUNK_SIZE);
+    }
+
+    public TraceWriter(File file, TraceEncoder<K, P, T> encoder, TimeSource timeSource, int chunkSize)
+            throws IOException {
+        if (chunkSize < 1024) {
+            throw new IllegalArgumentException("Chunk size should be at least 1024 bytes, but " + chunkSize);
+        }
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        this.encoder = encoder;
+        this.timeSource = timeSource;
+        this.chunkSize = chunkSize;
+        channel.truncate(0L);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, chunkSize);
+        buffer.putInt(MAGIC);
+    }
+
+    @Override
+    public void onTaskDistributed(T t, Collection<K> queues) {
+        writeWithQueues(TraceRecord.Type.DISTRIBUTE, encoder.taskId(t), queues);
+    }
+
+    @Override
+    public void onTaskCancelled(T t) {
+        if (ensureCapacity(17)) {
+            writeHeader(TraceRecord.Type.CANCEL);
+            buffer.putLong(encoder.taskId(t));
+        }
+    }
+
+    @Override
+    public void onProcRegistered(P p, Collection<K> queues) {
+        writeWithQueues(TraceRecord.Type.REGISTER, encoder.procId(p), queues);
+    }
+
+    @Override
+    public void onProcUnregistered(P p) {
+        if (ensureCapacity(17)) {
+            writeHeader(TraceRecord.Type.UNREGISTER);
+            buffer.putLong(encoder.procId(p));
+        }
+    }
+
+    @Override
+    public void onProcPaused(P p) {
+        if (ensureCapacity(17)) {
+            writeHeader(TraceRecord.Type.PAUSE);
+            buffer.putLong(encoder.procId(p));
+        }
+    }
+
+    @Override
+    public void onProcResumed(P p) {
+        if (ensureCapacity(17)) {
+            writeHeader(TraceRecord.Type.RESUME);
+            buffer.putLong(encoder.procId(p));
+        }
+    }
+
+    @Override
+    public void onOfferDone(T t, P p, boolean accepted) {
+        if (ensureCapacity(26)) {
+            writeHeader(TraceRecord.Type.OFFER);
+            buffer.putLong(encoder.taskId(t));
+            buffer.putLong(encoder.procId(p));
+            buffer.put((byte) (accepted ? 1 : 0));
+        }
+    }
+
+    /**
+     * @return number of bytes written so far
+     */
+    public long getSize() {
+        return buffer == null ? -1L : chunkPosition + buffer.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        long size = getSize();
+        buffer.force();
+        buffer = null;
+        try {
+            // the tail is zero-filled (END_OF_TRACE) anyway, so the trace is
+            // readable even if the platform doesn't allow truncating a mapped file
+            channel.truncate(size);
+        } catch (IOException ioe) {
+            // ignore
+        }
+        file.close();
+    }
+
+    private void writeWithQueues(TraceRecord.Type type, long id, Collection<K> queues) {
+        int queuesCount = queues == null ? -1 : queues.size();
+        if (ensureCapacity(21 + 8 * Math.max(queuesCount, 0))) {
+            writeHeader(type);
+            buffer.putLong(id);
+            buffer.putInt(queuesCount);
+            if (queues != null) {
+                for (K key : queues) {
+                    buffer.putLong(encoder.queueId(key));
+                }
+            }
+        }
+    }
+
+    private void writeHeader(TraceRecord.Type type) {
+        buffer.put(type.getCode());
+        buffer.putLong(timeSource.currentTimeMillis());
+    }
+
+    /**
+     * @return false if the writer is closed
+     */
+    private boolean ensureCapacity(int recordSize) {
+        if (buffer == null) {
+            return false;
+        }
+        if (buffer.remaining() <= recordSize) {
+            if (recordSize >= chunkSize) {
+                throw new IllegalArgumentException("The record of " + recordSize
+                        + " bytes doesn't fit the chunk size " + chunkSize);
+            }
+            chunkPosition += buffer.position();
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, chunkPosition, chunkSize);
+            } catch (IOException ioe) {
+                buffer = null;
+                throw new IllegalStateException("Cannot extend the trace file, the trace is stopped.", ioe);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("{size=").append(getSize()).append(", chunkSize=").append(chunkSize)
+                .append("}").toString();
+    }
+}
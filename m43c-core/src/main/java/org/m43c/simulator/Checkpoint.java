@@ -0,0 +1,148 @@
+package org.m43c.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Immutable snapshot of a {@link SingleThreadProcessor} state: the virtual
+ * time and all scheduled processes with their execution times.
+ * 
+ * <p>
+ * The state is kept in the compressed serialized form, so the same checkpoint
+ * can be restored into any number of processors, every restore gets its own
+ * copy of the processes. The checkpoint can be stored to a file via
+ * {@code writeTo()} and read back via {@code readFrom()}. A checkpoint read
+ * from a stream restores only the classes its class filter accepts, so a
+ * forged file cannot make the processor deserialize arbitrary classes.
+ */
+public final class Checkpoint {
+
+    private static final int MAGIC = 0x4D343343;
+
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+    private static final Predicate<String> NOTHING = new Predicate<String>() {
+        @Override
+        public boolean apply(String className) {
+            return false;
+        }
+    };
+
+    private final long resetTimeMs;
+
+    private final long timeMs;
+
+    private final byte[] data;
+
+    private final Predicate<String> classFilter;
+
+    Checkpoint(long resetTimeMs, long timeMs, byte[] data, Predicate<String> classFilter) {
+        this.resetTimeMs = resetTimeMs;
+        this.timeMs = timeMs;
+        this.data = data;
+        this.classFilter = classFilter;
+    }
+
+    /**
+     * @return the processor virtual time the checkpoint was made at
+     */
+    public long getTime() {
+        return timeMs;
+    }
+
+    public int getSize() {
+        return data.length;
+    }
+
+    public void writeTo(OutputStream os) throws IOException {
+        DataOutputStream dos = new DataOutputStream(os);
+        dos.writeInt(MAGIC);
+        dos.writeLong(resetTimeMs);
+        dos.writeLong(timeMs);
+        dos.writeInt(data.length);
+        dos.write(data);
+        dos.flush();
+    }
+
+    /**
+     * Reads the checkpoint which can restore the processor classes only.
+     * 
+     * @see #readFrom(InputStream, Predicate)
+     */
+    public static Checkpoint readFrom(InputStream is) throws IOException {
+        return readFrom(is, null);
+    }
+
+    /**
+     * Reads the checkpoint written by {@code writeTo()}.
+     * 
+     * @param classFilter
+     *            - accepts the names of the classes the checkpoint can
+     *            restore besides the processor ones, like the process
+     *            classes and everything reachable from them, null accepts
+     *            nothing else
+     * @throws IOException
+     *             if the stream doesn't contain a valid checkpoint
+     */
+    public static Checkpoint readFrom(InputStream is, Predicate<String> classFilter) throws IOException {
+        DataInputStream dis = new DataInputStream(is);
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("The stream doesn't contain a checkpoint.");
+        }
+        long resetTimeMs = dis.readLong();
+        long timeMs = dis.readLong();
+        int length = dis.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid checkpoint size " + length + ", the checkpoint is corrupted.");
+        }
+        return new Checkpoint(resetTimeMs, timeMs, readData(dis, length), classFilter == null ? NOTHING
+                : classFilter);
+    }
+
+    /**
+     * Reads the data by chunks, so a corrupted length fails on the stream end
+     * instead of allocating the whole length at once.
+     */
+    private static byte[] readData(InputStream is, int length) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.min(length, READ_CHUNK_SIZE));
+        byte[] chunk = new byte[READ_CHUNK_SIZE];
+        while (length > 0) {
+            int read = is.read(chunk, 0, Math.min(length, chunk.length));
+            if (read < 0) {
+                throw new EOFException("The checkpoint is truncated, " + length + " bytes are missing.");
+            }
+            baos.write(chunk, 0, read);
+            length -= read;
+        }
+        return baos.toByteArray();
+    }
+
+    long getResetTime() {
+        return resetTimeMs;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the filter of the restored classes, null if the checkpoint is
+     *         made by the processor and all classes are accepted
+     */
+    Predicate<String> getClassFilter() {
+        return classFilter;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("{timeMs=").append(timeMs).append(", size=").append(data.length)
+                .append("}").toString();
+    }
+}
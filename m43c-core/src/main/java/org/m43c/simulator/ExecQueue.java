@@ -0,0 +1,193 @@
+package org.m43c.simulator;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Indexed binary min-heap of the scheduled entries.
+ * 
+ * <p>
+ * Every entry keeps its position in the heap, so an arbitrary entry can be
+ * removed or moved in O(log n). Entries with the same execution time are
+ * ordered by their insertion order. The class is not thread-safe.
+ */
+final class ExecQueue<E extends ExecQueue.Entry> {
+
+    private Entry[] heap;
+
+    private int size;
+
+    private long seqNo;
+
+    private static final EntryComparator ENTRY_COMPARATOR = new EntryComparator();
+
+    static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        long nextExecTime;
+
+        long seqNo;
+
+        transient int index = -1;
+
+        boolean isQueued() {
+            return index >= 0;
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            index = -1;
+        }
+    }
+
+    private static class EntryComparator implements Comparator<Entry> {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            return less(o1, o2) ? -1 : (less(o2, o1) ? 1 : 0);
+        }
+    }
+
+    ExecQueue(int initialCapacity) {
+        heap = new Entry[Math.max(initialCapacity, 1)];
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    E peek() {
+        return (E) heap[0];
+    }
+
+    void add(E e) {
+        if (e.isQueued()) {
+            throw new IllegalStateException("The entry is already in the queue.");
+        }
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size << 1);
+        }
+        e.seqNo = seqNo++;
+        e.index = size++;
+        siftUp(e);
+    }
+
+    @SuppressWarnings("unchecked")
+    E poll() {
+        E result = (E) heap[0];
+        if (result != null) {
+            removeAt(0);
+        }
+        return result;
+    }
+
+    boolean remove(E e) {
+        if (!e.isQueued()) {
+            return false;
+        }
+        removeAt(e.index);
+        return true;
+    }
+
+    /**
+     * Moves the queued entry to the new position. The entry is placed after
+     * all other entries with the same execution time.
+     */
+    void update(E e, long nextExecTime) {
+        if (!e.isQueued()) {
+            e.nextExecTime = nextExecTime;
+            add(e);
+            return;
+        }
+        e.nextExecTime = nextExecTime;
+        e.seqNo = seqNo++;
+        siftUp(e);
+        siftDown(e);
+    }
+
+    /**
+     * @return the queued entries in the execution order
+     */
+    @SuppressWarnings("unchecked")
+    List<E> toSortedList() {
+        Entry[] result = Arrays.copyOf(heap, size);
+        Arrays.sort(result, ENTRY_COMPARATOR);
+        return (List<E>) Arrays.asList(result);
+    }
+
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            heap[i].index = -1;
+            heap[i] = null;
+        }
+        size = 0;
+    }
+
+    private void removeAt(int idx) {
+        Entry removed = heap[idx];
+        Entry last = heap[--size];
+        heap[size] = null;
+        removed.index = -1;
+        if (last != removed) {
+            last.index = idx;
+            siftUp(last);
+            siftDown(last);
+        }
+    }
+
+    private void siftUp(Entry e) {
+        int idx = e.index;
+        while (idx > 0) {
+            int parentIdx = (idx - 1) >>> 1;
+            Entry parent = heap[parentIdx];
+            if (!less(e, parent)) {
+                break;
+            }
+            parent.index = idx;
+            heap[idx] = parent;
+            idx = parentIdx;
+        }
+        e.index = idx;
+        heap[idx] = e;
+    }
+
+    private void siftDown(Entry e) {
+        int idx = e.index;
+        int half = size >>> 1;
+        while (idx < half) {
+            int childIdx = (idx << 1) + 1;
+            Entry child = heap[childIdx];
+            int rightIdx = childIdx + 1;
+            if (rightIdx < size && less(heap[rightIdx], child)) {
+                childIdx = rightIdx;
+                child = heap[childIdx];
+            }
+            if (!less(child, e)) {
+                break;
+            }
+            child.index = idx;
+            heap[idx] = child;
+            idx = childIdx;
+        }
+        e.index = idx;
+        heap[idx] = e;
+    }
+
+    private static boolean less(Entry e1, Entry e2) {
+        if (e1.nextExecTime != e2.nextExecTime) {
+            return e1.nextExecTime < e2.nextExecTime;
+        }
+        return e1.seqNo < e2.seqNo;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("{size=").append(size).append(", head=")
+                .append(size > 0 ? heap[0].nextExecTime : "none").append("}").toString();
+    }
+}
@@ -0,0 +1,58 @@
+package org.m43c.simulator;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free multi-producer single-consumer queue of processes.
+ * 
+ * <p>
+ * Producers push the processes from any thread, the only consumer takes all
+ * of them at once via {@code drain()} in the order they were posted.
+ */
+final class Inbox {
+
+    private final AtomicReference<Node> head = new AtomicReference<Node>();
+
+    static final class Node {
+
+        final Process process;
+
+        Node next;
+
+        Node(Process process) {
+            this.process = process;
+        }
+    }
+
+    /**
+     * @return true if the inbox was empty before the call
+     */
+    boolean push(Process process) {
+        Node node = new Node(process);
+        while (true) {
+            Node h = head.get();
+            node.next = h;
+            if (head.compareAndSet(h, node)) {
+                return h == null;
+            }
+        }
+    }
+
+    /**
+     * Takes all posted processes.
+     * 
+     * @return the first node of the list of processes in the posting order or
+     *         null if nothing was posted.
+     */
+    Node drain() {
+        Node node = head.getAndSet(null);
+        Node result = null;
+        while (node != null) {
+            Node next = node.next;
+            node.next = result;
+            result = node;
+            node = next;
+        }
+        return result;
+    }
+}
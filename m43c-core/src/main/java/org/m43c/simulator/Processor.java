@@ -7,8 +7,19 @@ public interface Processor {
      * 
      * @param process
      * @param delayMs
+     * @return the handle which can be used for cancelling or re-scheduling the
+     *         process
      */
-    void schedule(Process process, long delayMs);
+    ScheduledProcess schedule(Process process, long delayMs);
+    
+    /**
+     * Posts the process for execution as soon as possible. Can be invoked
+     * from any thread, the processes posted when the processor does not run
+     * are executed by the next run.
+     * 
+     * @param process
+     */
+    void post(Process process);
     
     /**
      * executes until there are processes in the queue. Synchronous blocking call 
@@ -6,8 +6,8 @@ import org.jrivets.env.TimeSource;
  * Virtual time generator for single thread.
  * 
  * This implementation intends for using from a single thread only, including
- * {@code TimeSource} interface methods. Only one method can be invoked safely
- * from any other thread which is {@code interrupt()}
+ * {@code TimeSource} interface methods. Only {@code interrupt()} and
+ * {@code wakeUp()} can be invoked safely from any other thread
  * 
  * @author Dmitry Spasibenko
  * 
@@ -28,7 +28,9 @@ final class Quartz implements TimeSource {
 
     private boolean interrupted;
 
-    private boolean sleeping;
+    private volatile boolean sleeping;
+
+    private volatile boolean wakeUpRequested;
 
     Quartz() {
         reset();
@@ -58,6 +60,15 @@ final class Quartz implements TimeSource {
         interrupted = false;
     }
 
+    /**
+     * Restores the virtual time, the acceleration coefficient stays the same.
+     */
+    void reset(long resetTimeMs, long currentTimeMs) {
+        reset();
+        this.resetTimeMs = resetTimeMs;
+        this.currentTimeMs = currentTimeMs;
+    }
+
     long getResetTime() {
         return resetTimeMs;
     }
@@ -92,6 +103,22 @@ final class Quartz implements TimeSource {
         return result;
     }
 
+    /**
+     * Sleeps till the quartz time if it is not reached yet. The full-throttle
+     * time is just moved there, the clock is not read, so the time of the
+     * following events is the same as if there was no such call.
+     * 
+     * @return true if the sleep is not interrupted
+     */
+    boolean sleepUntil(long timeMs) throws InterruptedException {
+        if (k == FULL_THROTTLE) {
+            currentTimeMs = Math.max(currentTimeMs, timeMs);
+            return true;
+        }
+        long now = currentTimeMillis();
+        return now >= timeMs || sleep(timeMs - now);
+    }
+
     /**
      * Causes to return back from
      * {@code sleep()) if an other thread is blocked there. 
@@ -100,6 +127,20 @@ final class Quartz implements TimeSource {
         interrupt(true);
     }
 
+    /**
+     * Lock-free version of {@code interrupt()}. The monitor is acquired only
+     * if the thread is sleeping right now, otherwise the request makes the
+     * next {@code sleep()} to return immediately.
+     */
+    void wakeUp() {
+        wakeUpRequested = true;
+        if (sleeping) {
+            synchronized (syncObject) {
+                syncObject.notifyAll();
+            }
+        }
+    }
+
     private void interrupt(boolean evenIfNotSleeping) {
         synchronized (syncObject) {
             syncObject.notifyAll();
@@ -114,14 +155,15 @@ final class Quartz implements TimeSource {
             sleeping = true;
             try {
                 long sleepTill = System.currentTimeMillis() + millis;
-                while (!interrupted && millis > 0) {
+                while (!interrupted && !wakeUpRequested && millis > 0) {
                     syncObject.wait(millis);
                     millis = sleepTill - System.currentTimeMillis();
                 }
-                return interrupted;
+                return !interrupted && !wakeUpRequested;
             } finally {
                 sleeping = false;
                 interrupted = false;
+                wakeUpRequested = false;
             }
         }
     }
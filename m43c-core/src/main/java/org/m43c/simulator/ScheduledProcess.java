@@ -0,0 +1,39 @@
+package org.m43c.simulator;
+
+/**
+ * Handle of a {@link Process} scheduled in a {@link Processor}.
+ * 
+ * <p>
+ * The handle stays bound to its process for the whole life of the processor,
+ * so a cancelled or already executed process can be put back into the queue
+ * via {@code reschedule()} without any new allocation. All methods must be
+ * invoked from the processor running thread only.
+ */
+public interface ScheduledProcess {
+
+    /**
+     * Removes the process from the execution queue.
+     * 
+     * <p>
+     * If invoked from the process itself while it is running, the delay
+     * returned by the process will be ignored.
+     * 
+     * @return true if the process was waiting for execution
+     */
+    boolean cancel();
+
+    /**
+     * Moves the process to the new execution time, or puts it back into the
+     * queue if it was cancelled or already executed.
+     * 
+     * @param delayMs
+     *            - the delay relative to the current processor time.
+     */
+    void reschedule(long delayMs);
+
+    /**
+     * @return true if the process is waiting for execution
+     */
+    boolean isScheduled();
+
+}
@@ -1,14 +1,36 @@
 package org.m43c.simulator;
 
-import java.util.Comparator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.List;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
-import org.jrivets.collection.SortedArray;
+import org.jrivets.env.TimeSource;
+
+import com.google.common.base.Predicate;
 
 public final class SingleThreadProcessor implements Processor {
 
+    /**
+     * The time acceleration which makes the processor to jump between the
+     * scheduled processes without any real sleep.
+     */
+    public static final long FULL_THROTTLE = Quartz.FULL_THROTTLE;
+
     private final Lock lock = new ReentrantLock();
 
     private Condition resumeCondition;
@@ -19,55 +41,144 @@ public final class SingleThreadProcessor implements Processor {
 
     private final Quartz quartz = new Quartz();
 
-    private final SortedArray<ProcessorWrapper> execQueue = new SortedArray<ProcessorWrapper>(
-            new ProcessorWrapperComparator(), 10);
+    private final ExecQueue<ProcessorWrapper> execQueue = new ExecQueue<ProcessorWrapper>(16);
 
-    private static class ProcessorWrapperComparator implements Comparator<ProcessorWrapper> {
-        @Override
-        public int compare(ProcessorWrapper o1, ProcessorWrapper o2) {
-            return (int) (o1.nextExecTime - o2.nextExecTime);
-        }
-    }
+    private final Inbox inbox = new Inbox();
+
+    private static final class ProcessorWrapper extends ExecQueue.Entry implements ScheduledProcess {
 
-    private static class ProcessorWrapper {
+        private static final long serialVersionUID = 1L;
 
-        private long nextExecTime;
+        private final SingleThreadProcessor processor;
 
         private final Process process;
 
-        public ProcessorWrapper(long nextExecTime, Process process) {
+        private transient boolean running;
+
+        private transient boolean cancelled;
+
+        ProcessorWrapper(SingleThreadProcessor processor, long nextExecTime, Process process) {
+            this.processor = processor;
             this.nextExecTime = nextExecTime;
             this.process = process;
         }
+
+        @Override
+        public boolean cancel() {
+            processor.assertInvokerThreadId();
+            if (running) {
+                cancelled = true;
+            }
+            return processor.execQueue.remove(this);
+        }
+
+        @Override
+        public void reschedule(long delayMs) {
+            processor.assertInvokerThreadId();
+            cancelled = false;
+            processor.execQueue.update(this, processor.quartz.currentTimeMillis() + delayMs);
+        }
+
+        @Override
+        public boolean isScheduled() {
+            return isQueued();
+        }
+    }
+
+    /**
+     * Stands for the processor and its time source in a checkpoint, so the
+     * restored processes refer to the processor they are restored to.
+     */
+    private static enum CheckpointRef {
+        PROCESSOR, TIME_SOURCE
+    }
+
+    private final class CheckpointOutputStream extends ObjectOutputStream {
+
+        CheckpointOutputStream(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (obj == SingleThreadProcessor.this) {
+                return CheckpointRef.PROCESSOR;
+            }
+            if (obj == quartz) {
+                return CheckpointRef.TIME_SOURCE;
+            }
+            return obj;
+        }
+    }
+
+    private final class CheckpointInputStream extends ObjectInputStream {
+
+        private final Predicate<String> classFilter;
+
+        CheckpointInputStream(InputStream in, Predicate<String> classFilter) throws IOException {
+            super(in);
+            this.classFilter = classFilter;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            if (classFilter != null && !isCheckpointClass(name) && !classFilter.apply(name)) {
+                throw new InvalidClassException(name, "The class is not accepted by the checkpoint class filter.");
+            }
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws IOException {
+            if (obj == CheckpointRef.PROCESSOR) {
+                return SingleThreadProcessor.this;
+            }
+            if (obj == CheckpointRef.TIME_SOURCE) {
+                return quartz;
+            }
+            return obj;
+        }
     }
 
     // -------------------------------------------------------------------------
     // Processor interface
     // -------------------------------------------------------------------------
     @Override
-    public void schedule(Process process, long delayMs) {
+    public ScheduledProcess schedule(Process process, long delayMs) {
         assertInvokerThreadId();
         if (process == null) {
             throw new NullPointerException();
         }
-        execQueue.add(new ProcessorWrapper(quartz.currentTimeMillis() + delayMs, process));
+        ProcessorWrapper pw = new ProcessorWrapper(this, quartz.currentTimeMillis() + delayMs, process);
+        execQueue.add(pw);
+        return pw;
     }
 
+    /**
+     * The running processor is woken up only by the post which makes the
+     * inbox non-empty, all the following posts are picked up by the same
+     * drain.
+     */
     @Override
-    public void run(Process process) throws InterruptedException {
-        lock.lock();
-        try {
-            if (runningThreadId != 0L) {
-                throw new AssertionError("Illegal usage of the single-thread processor or severe bug.");
-            }
-            runningThreadId = Thread.currentThread().getId();
-            state = ProcessorState.RUNNING;
-        } finally {
-            lock.unlock();
+    public void post(Process process) {
+        if (process == null) {
+            throw new NullPointerException();
+        }
+        if (inbox.push(process)) {
+            quartz.wakeUp();
         }
+    }
 
+    @Override
+    public void run(Process process) throws InterruptedException {
+        startRunning();
         try {
-            runInternal(process);
+            execQueue.clear();
+            schedule(process, 0L);
+            runInternal();
         } finally {
             runOver();
         }
@@ -116,10 +227,276 @@ public final class SingleThreadProcessor implements Processor {
         }
     }
 
-    private void runInternal(Process process) throws InterruptedException {
+    // -------------------------------------------------------------------------
+    // Checkpoints
+    // -------------------------------------------------------------------------
+    /**
+     * Restores the checkpoint and executes until there are processes in the
+     * queue. Synchronous blocking call.
+     * 
+     * <p>
+     * Many processors can run from the same checkpoint in parallel, each of
+     * them gets its own copy of the processes.
+     */
+    public void runFrom(Checkpoint checkpoint) throws InterruptedException {
+        if (checkpoint == null) {
+            throw new NullPointerException();
+        }
+        startRunning();
+        try {
+            restore(checkpoint);
+            runInternal();
+        } finally {
+            runOver();
+        }
+    }
+
+    /**
+     * Makes the snapshot of the virtual time and all scheduled processes. For
+     * running only.
+     * 
+     * <p>
+     * The scheduled processes and everything reachable from them must be
+     * {@link Serializable}, except this processor and its time source, which
+     * are replaced by the restoring ones. The {@link ScheduledProcess} handles
+     * are serializable as well. The invoking process itself is not in the
+     * queue while running, so it gets into the checkpoint only if it has been
+     * re-scheduled through its handle before the call. Posted, but not yet
+     * drained processes are not the part of the checkpoint. Can be invoked
+     * also from any thread when the processor is not running, for example
+     * between the {@code advance()} slices.
+     * 
+     * @throws IllegalStateException
+     *             if the state cannot be serialized
+     */
+    public Checkpoint checkpoint() {
+        boolean bound = bindIfNotRunning();
+        try {
+            return checkpointInternal();
+        } finally {
+            if (bound) {
+                runOver();
+            }
+        }
+    }
+
+    private Checkpoint checkpointInternal() {
+        long now = quartz.currentTimeMillis();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            ObjectOutputStream oos = new CheckpointOutputStream(new DeflaterOutputStream(baos, deflater));
+            List<ProcessorWrapper> entries = execQueue.toSortedList();
+            oos.writeInt(entries.size());
+            for (ProcessorWrapper pw : entries) {
+                oos.writeObject(pw);
+            }
+            oos.close();
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Cannot make a checkpoint of " + this, ioe);
+        } finally {
+            deflater.end();
+        }
+        return new Checkpoint(quartz.getResetTime(), now, baos.toByteArray(), null);
+    }
+
+    // -------------------------------------------------------------------------
+    // Step by step execution
+    // -------------------------------------------------------------------------
+    /**
+     * Prepares the processor for the step by step execution: clears the queue
+     * and schedules the process for the current virtual time. Nothing is
+     * executed until {@code advance()}, {@code step()} or {@code runUntil()}
+     * is invoked.
+     */
+    public void load(Process process) {
+        if (process == null) {
+            throw new NullPointerException();
+        }
+        startRunning();
+        try {
+            execQueue.clear();
+            schedule(process, 0L);
+        } finally {
+            runOver();
+        }
+    }
+
+    /**
+     * Restores the checkpoint for the step by step execution.
+     * 
+     * @see #load(Process)
+     */
+    public void loadFrom(Checkpoint checkpoint) {
+        if (checkpoint == null) {
+            throw new NullPointerException();
+        }
+        startRunning();
+        try {
+            restore(checkpoint);
+        } finally {
+            runOver();
+        }
+    }
+
+    /**
+     * Executes the scheduled processes on the invoking thread until either
+     * {@code maxEvents} processes are executed or the next process is
+     * scheduled after {@code virtualTime}. In the latter case the virtual time
+     * is moved to {@code virtualTime} before the call returns, so the
+     * processes scheduled after the slice are relative to it. Synchronous
+     * blocking call.
+     * 
+     * <p>
+     * The processes are executed exactly the same way as {@code run()} does,
+     * so a sequence of slices gives the same result as the uninterrupted run.
+     * The processor is bound to the invoking thread for the slice time only,
+     * different slices can be executed by different threads.
+     * 
+     * @return number of executed processes
+     */
+    public int advance(long virtualTime, int maxEvents) throws InterruptedException {
+        startRunning();
+        try {
+            int executed = 0;
+            while (executed < maxEvents) {
+                drainInbox();
+                if (execQueue.size() == 0 || execQueue.peek().nextExecTime > virtualTime) {
+                    if (virtualTime == Long.MAX_VALUE || quartz.sleepUntil(virtualTime)
+                            || state != ProcessorState.RUNNING) {
+                        break;
+                    }
+                    // woken up by a posted process
+                    continue;
+                }
+                if (execNext()) {
+                    executed++;
+                }
+            }
+            return executed;
+        } finally {
+            runOver();
+        }
+    }
+
+    /**
+     * Executes up to {@code nEvents} processes.
+     * 
+     * @return number of executed processes
+     * @see #advance(long, int)
+     */
+    public int step(int nEvents) throws InterruptedException {
+        return advance(Long.MAX_VALUE, nEvents);
+    }
+
+    /**
+     * Executes all the processes scheduled for {@code virtualTime} or
+     * earlier and moves the virtual time to {@code virtualTime}.
+     * 
+     * @return number of executed processes
+     * @see #advance(long, int)
+     */
+    public int runUntil(long virtualTime) throws InterruptedException {
+        return advance(virtualTime, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Should be invoked from the processor running thread or between the
+     * slices.
+     * 
+     * @return the virtual time of the next scheduled or posted process or -1
+     *         if nothing is scheduled
+     */
+    public long getNextExecTime() {
+        boolean bound = bindIfNotRunning();
+        try {
+            drainInbox();
+            return execQueue.size() == 0 ? -1L : execQueue.peek().nextExecTime;
+        } finally {
+            if (bound) {
+                runOver();
+            }
+        }
+    }
+
+    /**
+     * Sets the virtual time acceleration: positive k makes the time k times
+     * faster than the real one, negative k makes it -k times slower, and
+     * {@code FULL_THROTTLE} doesn't wait at all. Can be changed while running.
+     * 
+     * @throws IllegalArgumentException
+     *             if k is 0
+     */
+    public void setAcceleration(long k) {
+        quartz.setK(k);
+    }
+
+    /**
+     * Returns the virtual time of the processor, the time source can be used
+     * from the processor running thread only.
+     */
+    public TimeSource getTimeSource() {
+        return quartz;
+    }
+
+    private static boolean isCheckpointClass(String name) {
+        return name.startsWith(SingleThreadProcessor.class.getName() + "$")
+                || name.equals(ExecQueue.Entry.class.getName()) || name.equals(Enum.class.getName());
+    }
+
+    private void restore(Checkpoint checkpoint) {
         execQueue.clear();
-        schedule(process, 0L);
-        while (execQueue.size() > 0) {
+        quartz.reset(checkpoint.getResetTime(), checkpoint.getTime());
+        try {
+            ObjectInputStream ois = new CheckpointInputStream(new InflaterInputStream(new ByteArrayInputStream(
+                    checkpoint.getData())), checkpoint.getClassFilter());
+            int size = ois.readInt();
+            for (int i = 0; i < size; i++) {
+                Object entry = ois.readObject();
+                if (!(entry instanceof ProcessorWrapper)) {
+                    throw new InvalidObjectException("Unexpected checkpoint entry " + entry);
+                }
+                execQueue.add((ProcessorWrapper) entry);
+            }
+            ois.close();
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Cannot restore the checkpoint " + checkpoint, ioe);
+        } catch (ClassNotFoundException cnfe) {
+            throw new IllegalStateException("Cannot restore the checkpoint " + checkpoint, cnfe);
+        }
+    }
+
+    private void startRunning() {
+        lock.lock();
+        try {
+            if (runningThreadId != 0L) {
+                throw new AssertionError("Illegal usage of the single-thread processor or severe bug.");
+            }
+            runningThreadId = Thread.currentThread().getId();
+            state = ProcessorState.RUNNING;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean bindIfNotRunning() {
+        lock.lock();
+        try {
+            if (runningThreadId == Thread.currentThread().getId()) {
+                return false;
+            }
+            if (runningThreadId != 0L) {
+                throw new IllegalAccessError();
+            }
+            startRunning();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runInternal() throws InterruptedException {
+        while (drainInbox() || execQueue.size() > 0) {
             execNext();
         }
     }
@@ -134,31 +511,69 @@ public final class SingleThreadProcessor implements Processor {
         }
     }
 
-    private void execNext() throws InterruptedException {
-        ProcessorWrapper pw = execQueue.get(0);
+    /**
+     * @return true if the queue head was executed
+     */
+    private boolean execNext() throws InterruptedException {
+        ProcessorWrapper pw = execQueue.peek();
 
+        boolean due = true;
         long now = quartz.currentTimeMillis();
         if (pw.nextExecTime > now) {
-            quartz.sleep(pw.nextExecTime - now);
+            due = quartz.sleep(pw.nextExecTime - now);
         }
 
         if (state == ProcessorState.HALTED) {
             execQueue.clear();
-            return;
+            return false;
         }
 
         if (state == ProcessorState.SUSPENDED) {
             if (waitResume()) {
-                return;
+                return false;
             }
         }
 
-        execQueue.removeByIndex(0);
-        long delay = pw.process.run();
-        if (delay >= 0L) {
+        if (!due) {
+            // woken up before the time, the queue head could be changed
+            return false;
+        }
+
+        execQueue.poll();
+        long delay = execute(pw);
+        if (delay >= 0L && !pw.isQueued()) {
             pw.nextExecTime = quartz.currentTimeMillis() + delay;
             execQueue.add(pw);
         }
+        return true;
+    }
+
+    /**
+     * Runs the process. The returned delay is ignored (negative value is
+     * returned) if the process has been cancelled or re-scheduled through its
+     * handle while running.
+     */
+    private long execute(ProcessorWrapper pw) {
+        pw.running = true;
+        pw.cancelled = false;
+        try {
+            long delay = pw.process.run();
+            return pw.cancelled ? -1L : delay;
+        } finally {
+            pw.running = false;
+        }
+    }
+
+    private boolean drainInbox() {
+        Inbox.Node node = inbox.drain();
+        if (node == null) {
+            return false;
+        }
+        long now = quartz.currentTimeMillis();
+        for (; node != null; node = node.next) {
+            execQueue.add(new ProcessorWrapper(this, now, node.process));
+        }
+        return true;
     }
 
     private void assertInvokerThreadId() {
@@ -0,0 +1,30 @@
+package org.m43c.simulator.stats;
+
+/**
+ * Simple event counter.
+ */
+public final class Counter {
+
+    private long count;
+
+    public void increment() {
+        count++;
+    }
+
+    public void add(long value) {
+        count += value;
+    }
+
+    public long get() {
+        return count;
+    }
+
+    public void merge(Counter other) {
+        count += other.count;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(count);
+    }
+}
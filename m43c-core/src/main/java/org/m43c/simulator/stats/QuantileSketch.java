@@ -0,0 +1,143 @@
+package org.m43c.simulator.stats;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-memory quantile sketch for non-negative values, like wait or handle
+ * times.
+ * 
+ * <p>
+ * Values are counted in log-linear buckets: every power of two range is split
+ * into <tt>2^precisionBits</tt> equal sub-buckets, so a quantile is estimated
+ * with relative error below <tt>2^-precisionBits</tt>. Values less than
+ * <tt>2^precisionBits</tt> are counted exactly. The memory is allocated once
+ * by the constructor. Not thread-safe.
+ */
+public final class QuantileSketch {
+
+    public static final int DEFAULT_PRECISION_BITS = 5;
+
+    private final int precisionBits;
+
+    private final long[] counts;
+
+    private long count;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max = Long.MIN_VALUE;
+
+    private double sum;
+
+    public QuantileSketch() {
+        this(DEFAULT_PRECISION_BITS);
+    }
+
+    public QuantileSketch(int precisionBits) {
+        if (precisionBits < 1 || precisionBits > 16) {
+            throw new IllegalArgumentException("precisionBits should be in [1..16], but " + precisionBits);
+        }
+        this.precisionBits = precisionBits;
+        this.counts = new long[(65 - precisionBits) << precisionBits];
+    }
+
+    public void record(long value) {
+        if (value < 0L) {
+            throw new IllegalArgumentException("Value should not be negative, but " + value);
+        }
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0L ? 0.0 : sum / count;
+    }
+
+    /**
+     * Estimates the value at the given quantile.
+     * 
+     * @param q
+     *            - the quantile in [0..1]
+     * @return the estimated value, or 0 if nothing has been recorded
+     */
+    public long getQuantile(double q) {
+        if (q < 0.0 || q > 1.0) {
+            throw new IllegalArgumentException("Quantile should be in [0..1], but " + q);
+        }
+        if (count == 0L) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(q * count));
+        long seen = 0L;
+        for (int idx = 0; idx < counts.length; idx++) {
+            seen += counts[idx];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(max, bucketMiddle(idx)));
+            }
+        }
+        return max;
+    }
+
+    public void merge(QuantileSketch other) {
+        if (precisionBits != other.precisionBits) {
+            throw new IllegalArgumentException("Cannot merge sketches with different precision " + precisionBits
+                    + " and " + other.precisionBits);
+        }
+        for (int idx = 0; idx < counts.length; idx++) {
+            counts[idx] += other.counts[idx];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0L);
+        count = 0L;
+        sum = 0.0;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+    }
+
+    private int index(long value) {
+        int subBuckets = 1 << precisionBits;
+        if (value < subBuckets) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - precisionBits;
+        return ((shift + 1) << precisionBits) + (int) (value >>> shift) - subBuckets;
+    }
+
+    private long bucketMiddle(int idx) {
+        int subBuckets = 1 << precisionBits;
+        if (idx < subBuckets) {
+            return idx;
+        }
+        int shift = (idx >>> precisionBits) - 1;
+        long lowest = (long) ((idx & (subBuckets - 1)) + subBuckets) << shift;
+        return lowest + ((1L << shift) >>> 1);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("{count=").append(count).append(", mean=").append(getMean())
+                .append(", p50=").append(getQuantile(0.5)).append(", p90=").append(getQuantile(0.9))
+                .append(", p99=").append(getQuantile(0.99)).append(", max=").append(max).append("}").toString();
+    }
+}
@@ -0,0 +1,128 @@
+package org.m43c.simulator.stats;
+
+import org.jrivets.env.TimeSource;
+
+/**
+ * Service level tracker: share of requests served within the threshold time,
+ * sliced by virtual-time intervals.
+ * 
+ * <p>
+ * A request is counted into the interval it was served (or abandoned) in. The
+ * service level of an interval is the number of requests served within the
+ * threshold divided by the number of served requests plus the number of
+ * requests abandoned after the threshold. Requests abandoned within the
+ * threshold are counted separately and do not affect the service level.
+ * Requests out of the tracked time range are counted into the first or the
+ * last interval. All counters are allocated by the constructor. Not
+ * thread-safe.
+ */
+public final class ServiceLevelTracker {
+
+    private final TimeSource timeSource;
+
+    private final long startTimeMs;
+
+    private final long intervalMs;
+
+    private final long thresholdMs;
+
+    private final long[] within;
+
+    private final long[] total;
+
+    private final long[] shortAbandoned;
+
+    public ServiceLevelTracker(TimeSource timeSource, long startTimeMs, long intervalMs, int intervals,
+            long thresholdMs) {
+        if (intervalMs <= 0L || intervals <= 0 || thresholdMs < 0L) {
+            throw new IllegalArgumentException("Wrong tracker configuration: intervalMs=" + intervalMs
+                    + ", intervals=" + intervals + ", thresholdMs=" + thresholdMs);
+        }
+        this.timeSource = timeSource;
+        this.startTimeMs = startTimeMs;
+        this.intervalMs = intervalMs;
+        this.thresholdMs = thresholdMs;
+        this.within = new long[intervals];
+        this.total = new long[intervals];
+        this.shortAbandoned = new long[intervals];
+    }
+
+    public void served(long waitMs) {
+        int idx = currentInterval();
+        total[idx]++;
+        if (waitMs <= thresholdMs) {
+            within[idx]++;
+        }
+    }
+
+    public void abandoned(long waitMs) {
+        int idx = currentInterval();
+        if (waitMs <= thresholdMs) {
+            shortAbandoned[idx]++;
+        } else {
+            total[idx]++;
+        }
+    }
+
+    public int getIntervals() {
+        return total.length;
+    }
+
+    public long getIntervalStartTime(int interval) {
+        return startTimeMs + interval * intervalMs;
+    }
+
+    /**
+     * @return service level of the interval in [0..1], or 1 if there were no
+     *         requests in the interval
+     */
+    public double getServiceLevel(int interval) {
+        return total[interval] == 0L ? 1.0 : (double) within[interval] / total[interval];
+    }
+
+    /**
+     * @return service level over all intervals
+     */
+    public double getServiceLevel() {
+        long w = 0L;
+        long t = 0L;
+        for (int idx = 0; idx < total.length; idx++) {
+            w += within[idx];
+            t += total[idx];
+        }
+        return t == 0L ? 1.0 : (double) w / t;
+    }
+
+    public long getTotal(int interval) {
+        return total[interval];
+    }
+
+    public long getShortAbandoned(int interval) {
+        return shortAbandoned[interval];
+    }
+
+    public void merge(ServiceLevelTracker other) {
+        if (startTimeMs != other.startTimeMs || intervalMs != other.intervalMs || thresholdMs != other.thresholdMs
+                || total.length != other.total.length) {
+            throw new IllegalArgumentException("Cannot merge trackers with different configuration: " + this
+                    + " and " + other);
+        }
+        for (int idx = 0; idx < total.length; idx++) {
+            within[idx] += other.within[idx];
+            total[idx] += other.total[idx];
+            shortAbandoned[idx] += other.shortAbandoned[idx];
+        }
+    }
+
+    private int currentInterval() {
+        long idx = (timeSource.currentTimeMillis() - startTimeMs) / intervalMs;
+        return (int) Math.max(0L, Math.min(total.length - 1, idx));
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("{startTimeMs=").append(startTimeMs).append(", intervalMs=")
+                .append(intervalMs).append(", intervals=").append(total.length).append(", thresholdMs=")
+                .append(thresholdMs).append(", serviceLevel=").append(getServiceLevel()).append("}").toString();
+    }
+}
@@ -0,0 +1,92 @@
+package org.m43c.simulator.stats;
+
+import org.jrivets.env.TimeSource;
+
+/**
+ * Time-weighted average of a level, like a queue length or an occupancy.
+ * 
+ * <p>
+ * Every level change integrates the previous level over the time it was held,
+ * so the average is calculated in constant memory without any allocation.
+ * The collection starts with the first level change. Not thread-safe, should
+ * be used from the processor running thread only.
+ */
+public final class TimeWeightedAverage {
+
+    private final TimeSource timeSource;
+
+    private long level;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max = Long.MIN_VALUE;
+
+    private long lastChangeMs = -1L;
+
+    private long durationMs;
+
+    private double area;
+
+    public TimeWeightedAverage(TimeSource timeSource) {
+        this.timeSource = timeSource;
+    }
+
+    public void set(long newLevel) {
+        long now = timeSource.currentTimeMillis();
+        if (lastChangeMs >= 0L) {
+            long dt = now - lastChangeMs;
+            area += (double) level * dt;
+            durationMs += dt;
+        }
+        lastChangeMs = now;
+        level = newLevel;
+        min = Math.min(min, newLevel);
+        max = Math.max(max, newLevel);
+    }
+
+    public void add(long delta) {
+        set(level + delta);
+    }
+
+    public long getLevel() {
+        return level;
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return the average over the time up to the last level change, or 0 if
+     *         the level has not been held for any time yet
+     */
+    public double getAverage() {
+        return durationMs == 0L ? 0.0 : area / durationMs;
+    }
+
+    public long getDuration() {
+        return durationMs;
+    }
+
+    /**
+     * Adds the other collector statistics, so the average becomes the average
+     * over the both collectors time. The current level is not changed.
+     */
+    public void merge(TimeWeightedAverage other) {
+        area += other.area;
+        durationMs += other.durationMs;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("{average=").append(getAverage()).append(", min=").append(min)
+                .append(", max=").append(max).append(", level=").append(level).append(", durationMs=")
+                .append(durationMs).append("}").toString();
+    }
+}
@@ -0,0 +1,648 @@
+package org.m43c.cc.atd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jrivets.env.TimeSource;
+import org.jrivets.log.Logger;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.testng.Assert.*;
+
+public class MultiQueueATDTest {
+
+    private static final Comparator<String> ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String o1, String o2) {
+            return o1.compareTo(o2);
+        }
+    };
+
+    private static final SortKeyExtractor<String> LONGEST_FIRST = new SortKeyExtractor<String>() {
+        @Override
+        public long sortKey(String e) {
+            return -e.length();
+        }
+    };
+
+    private final List<String> offers = new ArrayList<String>();
+
+    private final Set<String> rejects = new HashSet<String>();
+
+    private final ManualExecutor executor = new ManualExecutor();
+
+    private long now;
+
+    private final TimeSource timeSource = new TimeSource() {
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    };
+
+    private MultiQueueATD<String, String, String> atd;
+
+    @BeforeMethod
+    public void init() {
+        offers.clear();
+        rejects.clear();
+        executor.tasks.clear();
+        now = 1000L;
+        atd = new MultiQueueATD<String, String, String>(new Logger(), new ReentrantLock(), executor,
+                new Offerer<String, String>() {
+                    @Override
+                    public boolean offer(String t, String p) {
+                        offers.add(t + "->" + p);
+                        return !rejects.contains(t + "->" + p);
+                    }
+                }, timeSource);
+        atd.addQueue(queue("q"));
+    }
+
+    @Test
+    public void pauseUnknownProc() {
+        assertFalse(atd.pauseProc("p1"));
+        assertFalse(atd.resumeProc("p1"));
+    }
+
+    @Test
+    public void resumeMatchesImmediately() {
+        atd.registerProc("p1");
+        assertTrue(atd.pauseProc("p1"));
+        atd.distributeTask("t1");
+        assertEquals(executor.runAll(), 0);
+        assertTrue(atd.resumeProc("p1"));
+        assertEquals(executor.runAll(), 1);
+        assertEquals(offers, Arrays.asList("t1->p1"));
+        assertFalse(atd.pauseProc("p1"));
+    }
+
+    @Test
+    public void pauseDuringRejectedOffer() {
+        atd.registerProc("p1");
+        atd.distributeTask("t1");
+        rejects.add("t1->p1");
+        assertTrue(atd.pauseProc("p1"));
+        assertEquals(executor.runAll(), 1);
+        atd.distributeTask("t2");
+        assertEquals(executor.runAll(), 0);
+        assertTrue(atd.resumeProc("p1"));
+        assertEquals(executor.runAll(), 1);
+        assertEquals(offers, Arrays.asList("t1->p1", "t2->p1"));
+    }
+
+    @Test
+    public void pauseDuringAcceptedOffer() {
+        atd.registerProc("p1");
+        atd.distributeTask("t1");
+        assertTrue(atd.pauseProc("p1"));
+        assertEquals(executor.runAll(), 1);
+        assertFalse(atd.resumeProc("p1"));
+        assertFalse(atd.cancelTask("t1"));
+    }
+
+    @Test
+    public void pauseKeepsBlackList() {
+        atd.registerProc("p1");
+        rejects.add("t1->p1");
+        atd.distributeTask("t1");
+        assertEquals(executor.runAll(), 1);
+        atd.pauseProc("p1");
+        atd.resumeProc("p1");
+        assertEquals(executor.runAll(), 0);
+        atd.distributeTask("t2");
+        assertEquals(executor.runAll(), 1);
+        assertEquals(offers, Arrays.asList("t1->p1", "t2->p1"));
+    }
+
+    @Test
+    public void addQueueBackfillsInBatches() {
+        atd.setRebalanceBatchSize(1);
+        atd.distributeTask("t2");
+        atd.distributeTask("t1", ImmutableList.of("r"));
+        atd.distributeTask("t3", ImmutableList.of("q"));
+        atd.registerProc("p1", ImmutableList.of("r"));
+        atd.registerProc("p2", ImmutableList.of("r"));
+        assertEquals(executor.runAll(), 0);
+        atd.addQueue(queue("r"));
+        assertEquals(executor.runAll(), 2);
+        assertEquals(offers, Arrays.asList("t1->p1", "t2->p2"));
+        assertTrue(atd.cancelTask("t3"));
+    }
+
+    @Test(expectedExceptions = { IllegalStateException.class })
+    public void addQueueTwice() {
+        atd.addQueue(queue("q"));
+    }
+
+    @Test
+    public void removeQueueToFallback() {
+        atd.addQueue(queue("r"));
+        atd.setRebalanceBatchSize(1);
+        atd.distributeTask("t1", ImmutableList.of("r"));
+        atd.distributeTask("t2", ImmutableList.of("r"));
+        assertTrue(atd.removeQueue("r", "q"));
+        atd.registerProc("p1", ImmutableList.of("q"));
+        atd.registerProc("p2", ImmutableList.of("q"));
+        assertEquals(executor.runAll(), 2);
+        assertEquals(offers, Arrays.asList("t1->p1", "t2->p2"));
+    }
+
+    @Test
+    public void removeQueueMovesOfferedTask() {
+        atd.addQueue(queue("r"));
+        atd.registerProc("p1", ImmutableList.of("r"));
+        rejects.add("t1->p1");
+        atd.distributeTask("t1", ImmutableList.of("r"));
+        assertTrue(atd.removeQueue("r", "q"));
+        assertEquals(executor.runAll(), 1);
+        atd.registerProc("p2", ImmutableList.of("q"));
+        assertEquals(executor.runAll(), 1);
+        assertEquals(offers, Arrays.asList("t1->p1", "t1->p2"));
+    }
+
+    @Test
+    public void removeQueueMovesReservedProc() {
+        atd.addQueue(queue("r"));
+        atd.registerProc("p1", ImmutableList.of("r"));
+        assertEquals(atd.reserveProc("v1", null, 1000L), "p1");
+        assertTrue(atd.removeQueue("r", "q"));
+        assertTrue(atd.releaseProc("v1"));
+        atd.distributeTask("t1", ImmutableList.of("q"));
+        assertEquals(executor.runAll(), 1);
+        assertEquals(offers, Arrays.asList("t1->p1"));
+    }
+
+    @Test
+    public void removeQueueKeepsBusyOrphans() {
+        atd.addQueue(queue("r"));
+        atd.registerProc("p1", ImmutableList.of("r"));
+        atd.registerProc("p2", ImmutableList.of("r"));
+        assertEquals(atd.reserveProc("v1", null, 1000L), "p1");
+        atd.distributeTask("t1", ImmutableList.of("r"));
+        List<String> orphanedTasks = new ArrayList<String>();
+        List<String> orphanedProcs = new ArrayList<String>();
+        assertTrue(atd.removeQueue("r", orphanedTasks, orphanedProcs));
+        assertTrue(orphanedTasks.isEmpty());
+        assertTrue(orphanedProcs.isEmpty());
+        assertEquals(executor.runAll(), 1);
+        assertEquals(offers, Arrays.asList("t1->p2"));
+        assertTrue(atd.unregisterProc("p1"));
+    }
+
+    @Test(expectedExceptions = { IllegalArgumentException.class })
+    public void removeQueueToUnknownFallback() {
+        atd.removeQueue("q", "r");
+    }
+
+    @Test
+    public void removeQueueReturnsOrphans() {
+        atd.addQueue(queue("r"));
+        atd.registerProc("p1", ImmutableList.of("r"));
+        atd.pauseProc("p1");
+        atd.distributeTask("t1", ImmutableList.of("r"));
+        atd.distributeTask("t2");
+        List<String> orphanedTasks = new ArrayList<String>();
+        List<String> orphanedProcs = new ArrayList<String>();
+        assertTrue(atd.removeQueue("r", orphanedTasks, orphanedProcs));
+        assertFalse(atd.removeQueue("r", orphanedTasks, orphanedProcs));
+        assertEquals(orphanedTasks, Arrays.asList("t1"));
+        assertEquals(orphanedProcs, Arrays.asList("p1"));
+        assertFalse(atd.cancelTask("t1"));
+        assertFalse(atd.unregisterProc("p1"));
+        assertTrue(atd.cancelTask("t2"));
+    }
+
+    @Test
+    public void removedQueueKeepsStranded() {
+        atd.addQueue(queue("r"));
+        atd.distributeTask("t1", ImmutableList.of("r"));
+        assertTrue(atd.removeQueue("r"));
+        atd.registerProc("p1");
+        assertEquals(executor.runAll(), 0);
+        atd.addQueue(queue("r"));
+        assertEquals(executor.runAll(), 1);
+        assertEquals(offers, Arrays.asList("t1->p1"));
+    }
+
+    @Test
+    public void keyedQueueOrder() {
+        atd.addQueue(new Queue<String, String, String>("k", LONGEST_FIRST, LONGEST_FIRST));
+        ImmutableList<String> k = ImmutableList.of("k");
+        atd.distributeTask("a", k);
+        atd.distributeTask("bb", k);
+        atd.distributeTask("c", k);
+        atd.distributeTask("dd", k);
+        for (String p : new String[] { "p2", "p1", "p4", "p3" }) {
+            atd.registerProc(p, k);
+        }
+        assertEquals(executor.runAll(), 4);
+        assertEquals(offers, Arrays.asList("bb->p2", "dd->p1", "a->p4", "c->p3"));
+    }
+
+    @Test
+    public void keyedQueuesShareExtractors() {
+        atd.addQueue(new Queue<String, String, String>("k1", LONGEST_FIRST, LONGEST_FIRST));
+        atd.addQueue(new Queue<String, String, String>("k2", LONGEST_FIRST, LONGEST_FIRST));
+        try {
+            atd.addQueue(new Queue<String, String, String>("k3", LONGEST_FIRST, new SortKeyExtractor<String>() {
+                @Override
+                public long sortKey(String e) {
+                    return 0L;
+                }
+            }));
+            fail("The extractors mismatch should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertFalse(atd.removeQueue("k3"));
+    }
+
+    @Test
+    public void blackListUnlimitedByDefault() {
+        for (int i = 0; i < 40; i++) {
+            atd.registerProc("p" + i);
+            rejects.add("t1->p" + i);
+        }
+        atd.distributeTask("t1");
+        assertEquals(executor.runAll(), 40);
+        assertTrue(atd.cancelTask("t1"));
+    }
+
+    @Test
+    public void blackListCapacity() {
+        atd.setBlackListLimits(1, Long.MAX_VALUE);
+        atd.registerProc("p1");
+        atd.registerProc("p2");
+        rejects.add("t1->p1");
+        rejects.add("t1->p2");
+        atd.distributeTask("t1");
+        assertEquals(executor.run(3), 3);
+        assertEquals(offers, Arrays.asList("t1->p1", "t1->p2", "t1->p1"));
+    }
+
+    @Test
+    public void blackListTtl() {
+        atd.setBlackListLimits(Integer.MAX_VALUE, 100L);
+        atd.registerProc("p1");
+        rejects.add("t1->p1");
+        atd.distributeTask("t1");
+        assertEquals(executor.runAll(), 1);
+        now += 99L;
+        atd.pauseProc("p1");
+        atd.resumeProc("p1");
+        assertEquals(executor.runAll(), 0);
+        now += 1L;
+        atd.pauseProc("p1");
+        atd.resumeProc("p1");
+        assertEquals(executor.runAll(), 1);
+        assertEquals(offers, Arrays.asList("t1->p1", "t1->p1"));
+    }
+
+    @Test
+    public void starvingTasksAndIdleProcs() {
+        final List<String> events = new ArrayList<String>();
+        atd.addQueue(queue("r"));
+        atd.setStarvationListener(new EventsListener(events), 10L);
+        atd.setTaskWaitLimit("q", 100L);
+        atd.setTaskWaitLimit("r", 50L);
+        atd.setProcIdleLimit(200L);
+        atd.distributeTask("tq", ImmutableList.of("q"));
+        atd.distributeTask("tall");
+        atd.distributeTask("tc", ImmutableList.of("q"));
+        atd.cancelTask("tc");
+        now += 60L;
+        atd.checkTimers();
+        assertEquals(events, Arrays.asList("starving tall 60"));
+        now += 60L;
+        atd.checkTimers();
+        assertEquals(events, Arrays.asList("starving tall 60", "starving tq 120"));
+        now += 1000L;
+        atd.checkTimers();
+        assertEquals(events.size(), 2);
+        atd.cancelTask("tq");
+        atd.cancelTask("tall");
+
+        atd.registerProc("p1");
+        atd.pauseProc("p1");
+        now += 500L;
+        atd.checkTimers();
+        assertEquals(events.size(), 2);
+        atd.resumeProc("p1");
+        now += 199L;
+        atd.checkTimers();
+        assertEquals(events.size(), 2);
+        now += 11L;
+        atd.checkTimers();
+        assertEquals(events.get(2), "idle p1 210");
+    }
+
+    @Test
+    public void starvationListenerReplaced() {
+        final List<String> events = new ArrayList<String>();
+        atd.setTaskWaitLimit("q", 100L);
+        atd.setStarvationListener(new EventsListener(events), 10L);
+        atd.distributeTask("t1");
+        atd.setStarvationListener(new EventsListener(events), 10L);
+        atd.distributeTask("t2");
+        atd.cancelTask("t1");
+        now += 100L;
+        atd.checkTimers();
+        assertEquals(events, Arrays.asList("starving t2 100"));
+
+        atd.setStarvationListener(null, 0L);
+        atd.distributeTask("t3");
+        now += 1000L;
+        atd.checkTimers();
+        assertEquals(events.size(), 1);
+    }
+
+    @Test
+    public void taskDistributedBeforeListenerIsNotTracked() {
+        final List<String> events = new ArrayList<String>();
+        atd.setTaskWaitLimit("q", 100L);
+        atd.registerProc("p1");
+        rejects.add("t1->p1");
+        atd.distributeTask("t1");
+        atd.setStarvationListener(new EventsListener(events), 10L);
+        now += 20L;
+        assertEquals(executor.runAll(), 1);
+        atd.checkTimers();
+        now += 1000L;
+        atd.checkTimers();
+        assertTrue(events.isEmpty());
+
+        // the same for the task tracked by the replaced listener
+        atd.cancelTask("t1");
+        atd.unregisterProc("p1");
+        atd.distributeTask("t2");
+        atd.setStarvationListener(new EventsListener(events), 10L);
+        rejects.add("t2->p2");
+        atd.registerProc("p2");
+        assertEquals(executor.runAll(), 1);
+        now += 1000L;
+        atd.checkTimers();
+        assertTrue(events.isEmpty());
+        assertEquals(offers, Arrays.asList("t1->p1", "t2->p2"));
+    }
+
+    @Test
+    public void reservedProcGetsExpectedTask() {
+        atd.addQueue(queue("vip"));
+        atd.registerProc("p1", ImmutableList.of("q"));
+        atd.registerProc("p2", ImmutableList.of("vip", "q"));
+        assertEquals(atd.reserveProc("v1", ImmutableList.of("vip"), 5000L), "p2");
+        assertNull(atd.reserveProc("v2", ImmutableList.of("vip"), 5000L));
+        atd.distributeTask("t1");
+        atd.distributeTask("t2");
+        assertEquals(executor.runAll(), 1);
+        atd.distributeTask("v1", ImmutableList.of("q"));
+        assertEquals(executor.runAll(), 1);
+        assertEquals(offers, Arrays.asList("t1->p1", "v1->p2"));
+        assertTrue(atd.cancelTask("t2"));
+    }
+
+    @Test(expectedExceptions = { IllegalArgumentException.class })
+    public void reserveForDistributedTask() {
+        atd.distributeTask("t1");
+        atd.reserveProc("t1", null, 1000L);
+    }
+
+    @Test
+    public void reservationTimeout() {
+        atd.registerProc("p1");
+        assertEquals(atd.reserveProc("v1", null, 1000L), "p1");
+        atd.distributeTask("t1");
+        now += 999L;
+        atd.checkTimers();
+        assertEquals(executor.runAll(), 0);
+        now += 20L;
+        atd.checkTimers();
+        assertFalse(atd.releaseProc("v1"));
+        assertEquals(executor.runAll(), 1);
+        assertEquals(offers, Arrays.asList("t1->p1"));
+    }
+
+    @Test
+    public void releaseProc() {
+        atd.registerProc("p1");
+        assertEquals(atd.reserveProc("v1", null, 1000L), "p1");
+        atd.distributeTask("t1");
+        assertTrue(atd.releaseProc("v1"));
+        assertFalse(atd.releaseProc("v1"));
+        assertEquals(executor.runAll(), 1);
+        assertEquals(offers, Arrays.asList("t1->p1"));
+    }
+
+    @Test
+    public void pauseAndUnregisterRelease() {
+        atd.registerProc("p1");
+        assertEquals(atd.reserveProc("v1", null, 1000L), "p1");
+        atd.pauseProc("p1");
+        assertFalse(atd.releaseProc("v1"));
+        assertNull(atd.reserveProc("v1", null, 1000L));
+        atd.resumeProc("p1");
+        assertEquals(atd.reserveProc("v1", null, 1000L), "p1");
+        assertTrue(atd.unregisterProc("p1"));
+        assertFalse(atd.releaseProc("v1"));
+        atd.distributeTask("v1");
+        assertEquals(executor.runAll(), 0);
+    }
+
+    @Test
+    public void reservedBetweenBackfillBatches() {
+        final HookLock lock = new HookLock();
+        atd = new MultiQueueATD<String, String, String>(new Logger(), lock, executor, new Offerer<String, String>() {
+            @Override
+            public boolean offer(String t, String p) {
+                offers.add(t + "->" + p);
+                return true;
+            }
+        }, timeSource);
+        atd.addQueue(queue("q"));
+        atd.setRebalanceBatchSize(1);
+        atd.registerProc("p0");
+        atd.registerProc("p1");
+        lock.hook(2, new Runnable() {
+            @Override
+            public void run() {
+                assertEquals(atd.reserveProc("vip", ImmutableList.of("q"), 1000L), "p0");
+            }
+        });
+        atd.addQueue(queue("r"));
+        atd.distributeTask("t1", ImmutableList.of("r"));
+        atd.distributeTask("vip", ImmutableList.of("r"));
+        assertEquals(executor.runAll(), 2);
+        assertEquals(offers, Arrays.asList("t1->p1", "vip->p0"));
+    }
+
+    @Test
+    public void inlineOffers() {
+        atd = inlineAtd();
+        atd.registerProc("p1");
+        atd.registerProc("p2");
+        rejects.add("t1->p1");
+        atd.distributeTask("t1");
+        assertEquals(offers, Arrays.asList("t1->p1", "t1->p2"));
+        assertFalse(atd.cancelTask("t1"));
+        assertTrue(executor.tasks.isEmpty());
+    }
+
+    @Test
+    public void inlineRejectionsUnlimited() {
+        atd = inlineAtd();
+        for (int i = 0; i < 40; i++) {
+            atd.registerProc(String.format("p%02d", i));
+            rejects.add(String.format("t1->p%02d", i));
+        }
+        atd.distributeTask("t1");
+        assertEquals(offers.size(), 40);
+        assertTrue(atd.cancelTask("t1"));
+    }
+
+    @Test
+    public void inlineRejectionsBoundedByCapacity() {
+        atd = inlineAtd();
+        atd.setBlackListLimits(32, Long.MAX_VALUE);
+        for (int i = 0; i < 40; i++) {
+            atd.registerProc(String.format("p%02d", i));
+            rejects.add(String.format("t1->p%02d", i));
+        }
+        atd.distributeTask("t1");
+        assertEquals(offers.size(), 32);
+        assertEquals(offers.get(31), "t1->p31");
+
+        // the parked task is matched by the next put, up to the capacity again
+        rejects.add("t1->p40");
+        atd.registerProc("p40");
+        assertEquals(offers.size(), 64);
+        assertEquals(offers.get(32), "t1->p40");
+        assertEquals(offers.get(33), "t1->p00");
+
+        atd.registerProc("p41");
+        assertEquals(offers.get(offers.size() - 1), "t1->p41");
+        assertFalse(atd.cancelTask("t1"));
+    }
+
+    private MultiQueueATD<String, String, String> inlineAtd() {
+        MultiQueueATD<String, String, String> result = new MultiQueueATD<String, String, String>(new Logger(),
+                new ReentrantLock(), null, new InlineOfferer<String, String>() {
+                    @Override
+                    public boolean offer(String t, String p) {
+                        offers.add(t + "->" + p);
+                        return !rejects.contains(t + "->" + p);
+                    }
+                }, timeSource);
+        result.addQueue(queue("q"));
+        return result;
+    }
+
+    private static Queue<String, String, String> queue(String key) {
+        return new Queue<String, String, String>(key, ORDER, ORDER);
+    }
+
+    private static class EventsListener implements StarvationListener<String, String> {
+
+        private final List<String> events;
+
+        EventsListener(List<String> events) {
+            this.events = events;
+        }
+
+        @Override
+        public void onTaskStarving(String t, long waitingMs) {
+            events.add("starving " + t + " " + waitingMs);
+        }
+
+        @Override
+        public void onProcIdle(String p, long idleMs) {
+            events.add("idle " + p + " " + idleMs);
+        }
+    }
+
+    /**
+     * Runs the hook before the n-th lock acquisition.
+     */
+    @SuppressWarnings("serial")
+    private static class HookLock extends ReentrantLock {
+
+        private Runnable hook;
+
+        private int countdown;
+
+        void hook(int n, Runnable hook) {
+            this.countdown = n;
+            this.hook = hook;
+        }
+
+        @Override
+        public void lock() {
+            if (hook != null && --countdown == 0) {
+                Runnable h = hook;
+                hook = null;
+                h.run();
+            }
+            super.lock();
+        }
+    }
+
+    /**
+     * Keeps the offers until the test runs them.
+     */
+    private static class ManualExecutor extends AbstractExecutorService {
+
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        int runAll() {
+            return run(Integer.MAX_VALUE);
+        }
+
+        int run(int max) {
+            int count = 0;
+            while (!tasks.isEmpty() && count < max) {
+                tasks.remove(0).run();
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<Runnable>(tasks);
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}
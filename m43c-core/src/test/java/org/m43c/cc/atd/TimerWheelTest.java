@@ -0,0 +1,95 @@
+package org.m43c.cc.atd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class TimerWheelTest {
+
+    private static class TestTimer extends TimerWheel.Timer {
+
+        final long deadlineMs;
+
+        TestTimer(long deadlineMs) {
+            this.deadlineMs = deadlineMs;
+        }
+    }
+
+    @Test
+    public void neverEarlyAtMostOneTickLate() {
+        Random rnd = new Random(35L);
+        TimerWheel<TestTimer> wheel = new TimerWheel<TestTimer>(10L, 0L);
+        List<TestTimer> timers = new ArrayList<TestTimer>();
+        for (int i = 0; i < 2000; i++) {
+            // up to all 4 levels and beyond
+            long deadline = i % 100 == 0 ? 10L * (1L << 24) + rnd.nextInt(1000) : rnd.nextInt(10000000);
+            TestTimer timer = new TestTimer(deadline);
+            wheel.arm(timer, deadline);
+            timers.add(timer);
+        }
+        assertEquals(wheel.size(), 2000);
+        List<TestTimer> expired = new ArrayList<TestTimer>();
+        int fired = 0;
+        for (long now = 0L; fired < timers.size(); now += 7L + rnd.nextInt(5000)) {
+            wheel.advance(now, expired);
+            for (TestTimer timer : expired) {
+                assertTrue(timer.deadlineMs <= now, "early " + timer.deadlineMs + " at " + now);
+                assertFalse(timer.isArmed());
+            }
+            fired += expired.size();
+            expired.clear();
+            for (TestTimer timer : timers) {
+                if (timer.isArmed()) {
+                    assertTrue(timer.deadlineMs > now - 10L, "late " + timer.deadlineMs + " at " + now);
+                }
+            }
+        }
+        assertEquals(wheel.size(), 0);
+    }
+
+    @Test
+    public void disarmAndRearm() {
+        TimerWheel<TestTimer> wheel = new TimerWheel<TestTimer>(1L, 0L);
+        TestTimer t1 = new TestTimer(5L);
+        TestTimer t2 = new TestTimer(5L);
+        wheel.arm(t1, 5L);
+        wheel.arm(t2, 5L);
+        wheel.disarm(t1);
+        wheel.disarm(t1);
+        wheel.arm(t2, 100L);
+        assertEquals(wheel.size(), 1);
+        List<TestTimer> expired = new ArrayList<TestTimer>();
+        wheel.advance(99L, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(100L, expired);
+        assertEquals(expired.size(), 1);
+        assertSame(expired.get(0), t2);
+    }
+
+    @Test
+    public void clearUnlinksTimers() {
+        TimerWheel<TestTimer> wheel = new TimerWheel<TestTimer>(1L, 0L);
+        TestTimer timer = new TestTimer(5000L);
+        wheel.arm(timer, 5000L);
+        wheel.clear();
+        assertEquals(wheel.size(), 0);
+        assertFalse(timer.isArmed());
+
+        TimerWheel<TestTimer> other = new TimerWheel<TestTimer>(1L, 0L);
+        other.arm(timer, 10L);
+        assertEquals(other.size(), 1);
+        List<TestTimer> expired = new ArrayList<TestTimer>();
+        other.advance(10L, expired);
+        assertEquals(expired.size(), 1);
+        assertEquals(other.size(), 0);
+    }
+
+    @Test(expectedExceptions = { IllegalArgumentException.class })
+    public void zeroTick() {
+        new TimerWheel<TestTimer>(0L, 0L);
+    }
+}
@@ -0,0 +1,164 @@
+package org.m43c.cc.atd.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jrivets.env.TimeSource;
+import org.jrivets.log.Logger;
+import org.m43c.cc.atd.ATDListener;
+import org.m43c.cc.atd.InlineOfferer;
+import org.m43c.cc.atd.MultiQueueATD;
+import org.m43c.cc.atd.Queue;
+import org.m43c.simulator.SingleThreadProcessor;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.testng.Assert.*;
+
+public class TraceReplayerTest {
+
+    private static final Comparator<Long> ORDER = new Comparator<Long>() {
+        @Override
+        public int compare(Long o1, Long o2) {
+            return o1.compareTo(o2);
+        }
+    };
+
+    private long now = 1000L;
+
+    @Test(timeOut = 5000L)
+    public void replayKeepsIntervals() throws IOException, InterruptedException {
+        File file = File.createTempFile("atd", ".trace");
+        file.deleteOnExit();
+        TraceWriter<String, Long, Long> writer = new TraceWriter<String, Long, Long>(file,
+                new TraceEncoder<String, Long, Long>() {
+                    @Override
+                    public long taskId(Long t) {
+                        return t;
+                    }
+
+                    @Override
+                    public long procId(Long p) {
+                        return p;
+                    }
+
+                    @Override
+                    public long queueId(String key) {
+                        return key.charAt(0);
+                    }
+                }, new TimeSource() {
+                    @Override
+                    public long currentTimeMillis() {
+                        return now;
+                    }
+                }, 1024);
+        writer.onProcRegistered(1L, ImmutableList.of("a"));
+        writer.onProcRegistered(2L, null);
+        now += 10L;
+        writer.onTaskDistributed(11L, ImmutableList.of("a"));
+        writer.onOfferDone(11L, 1L, true);
+        now += 10L;
+        writer.onProcPaused(2L);
+        now += 10L;
+        writer.onTaskDistributed(12L, null);
+        now += 20L;
+        writer.onProcResumed(2L);
+        writer.onOfferDone(12L, 2L, false);
+        now += 10L;
+        writer.onTaskDistributed(13L, null);
+        now += 10L;
+        writer.onTaskCancelled(13L);
+        writer.onProcRegistered(3L, null);
+        now += 10L;
+        writer.onProcUnregistered(3L);
+        writer.close();
+
+        final SingleThreadProcessor processor = new SingleThreadProcessor();
+        processor.setAcceleration(SingleThreadProcessor.FULL_THROTTLE);
+        final List<String> offers = new ArrayList<String>();
+        final List<Long> offerTimes = new ArrayList<Long>();
+        MultiQueueATD<String, Long, Long> atd = new MultiQueueATD<String, Long, Long>(new Logger(),
+                new ReentrantLock(), null, new InlineOfferer<Long, Long>() {
+                    @Override
+                    public boolean offer(Long t, Long p) {
+                        offers.add(t + "->" + p);
+                        offerTimes.add(processor.getTimeSource().currentTimeMillis());
+                        return true;
+                    }
+                });
+        atd.addQueue(new Queue<String, Long, Long>("a", ORDER, ORDER));
+        final List<String> recorded = new ArrayList<String>();
+        TraceReplayer<String, Long, Long> replayer = new TraceReplayer<String, Long, Long>(new TraceReader(file),
+                new TraceDecoder<String, Long, Long>() {
+                    @Override
+                    public Long task(long id) {
+                        return id;
+                    }
+
+                    @Override
+                    public Long proc(long id) {
+                        return id;
+                    }
+
+                    @Override
+                    public String queue(long id) {
+                        return String.valueOf((char) id);
+                    }
+                }, atd, new RecordedOffers(recorded));
+        processor.run(replayer);
+
+        assertEquals(replayer.getReplayedCount(), 12L);
+        assertEquals(offers, Arrays.asList("11->1", "12->2"));
+        // every clock reading moves the full-throttle time by 1 ms
+        long interval = offerTimes.get(1) - offerTimes.get(0);
+        assertTrue(interval >= 40L && interval < 50L, "interval " + interval);
+        assertEquals(recorded, Arrays.asList("11->1 true", "12->2 false"));
+        assertFalse(atd.cancelTask(13L));
+        assertFalse(atd.unregisterProc(3L));
+    }
+
+    private static class RecordedOffers implements ATDListener<String, Long, Long> {
+
+        private final List<String> recorded;
+
+        RecordedOffers(List<String> recorded) {
+            this.recorded = recorded;
+        }
+
+        @Override
+        public void onTaskDistributed(Long t, Collection<String> queues) {
+        }
+
+        @Override
+        public void onTaskCancelled(Long t) {
+        }
+
+        @Override
+        public void onProcRegistered(Long p, Collection<String> queues) {
+        }
+
+        @Override
+        public void onProcUnregistered(Long p) {
+        }
+
+        @Override
+        public void onProcPaused(Long p) {
+        }
+
+        @Override
+        public void onProcResumed(Long p) {
+        }
+
+        @Override
+        public void onOfferDone(Long t, Long p, boolean accepted) {
+            recorded.add(t + "->" + p + " " + accepted);
+        }
+    }
+}
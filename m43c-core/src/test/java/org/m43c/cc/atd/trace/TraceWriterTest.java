@@ -0,0 +1,158 @@
+package org.m43c.cc.atd.trace;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.jrivets.env.TimeSource;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.testng.Assert.*;
+
+public class TraceWriterTest {
+
+    private static final TraceEncoder<String, Long, Long> ENCODER = new TraceEncoder<String, Long, Long>() {
+        @Override
+        public long taskId(Long t) {
+            return t;
+        }
+
+        @Override
+        public long procId(Long p) {
+            return p;
+        }
+
+        @Override
+        public long queueId(String key) {
+            return Long.parseLong(key);
+        }
+    };
+
+    private long now;
+
+    private final TimeSource timeSource = new TimeSource() {
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    };
+
+    private File file;
+
+    @BeforeMethod
+    public void init() throws IOException {
+        file = File.createTempFile("atd", ".trace");
+        file.deleteOnExit();
+        now = 1000L;
+    }
+
+    @Test
+    public void roundTripAllTypes() throws IOException {
+        TraceWriter<String, Long, Long> writer = new TraceWriter<String, Long, Long>(file, ENCODER, timeSource, 1024);
+        writer.onTaskDistributed(1L, null);
+        writer.onTaskDistributed(2L, ImmutableList.of("10", "20", "30", "40", "50", "60"));
+        writer.onTaskCancelled(2L);
+        writer.onProcRegistered(3L, null);
+        writer.onProcRegistered(4L, ImmutableList.of("10"));
+        writer.onProcPaused(4L);
+        writer.onProcResumed(4L);
+        writer.onOfferDone(1L, 3L, true);
+        writer.onOfferDone(1L, 4L, false);
+        writer.onProcUnregistered(4L);
+        writer.close();
+
+        TraceReader reader = new TraceReader(file);
+        TraceRecord record = new TraceRecord();
+        assertRecord(reader, record, TraceRecord.Type.DISTRIBUTE, 1L, 0L);
+        assertEquals(record.getQueuesCount(), -1);
+        assertRecord(reader, record, TraceRecord.Type.DISTRIBUTE, 2L, 0L);
+        assertEquals(record.getQueuesCount(), 6);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(record.getQueueId(i), (i + 1) * 10L);
+        }
+        assertRecord(reader, record, TraceRecord.Type.CANCEL, 2L, 0L);
+        assertRecord(reader, record, TraceRecord.Type.REGISTER, 0L, 3L);
+        assertEquals(record.getQueuesCount(), -1);
+        assertRecord(reader, record, TraceRecord.Type.REGISTER, 0L, 4L);
+        assertEquals(record.getQueuesCount(), 1);
+        assertEquals(record.getQueueId(0), 10L);
+        assertRecord(reader, record, TraceRecord.Type.PAUSE, 0L, 4L);
+        assertRecord(reader, record, TraceRecord.Type.RESUME, 0L, 4L);
+        assertRecord(reader, record, TraceRecord.Type.OFFER, 1L, 3L);
+        assertTrue(record.isAccepted());
+        assertRecord(reader, record, TraceRecord.Type.OFFER, 1L, 4L);
+        assertFalse(record.isAccepted());
+        assertRecord(reader, record, TraceRecord.Type.UNREGISTER, 0L, 4L);
+        assertFalse(reader.next(record));
+        reader.close();
+    }
+
+    @Test
+    public void roundTripAcrossChunks() throws IOException {
+        TraceWriter<String, Long, Long> writer = new TraceWriter<String, Long, Long>(file, ENCODER, timeSource, 1024);
+        for (long i = 0; i < 500; i++) {
+            now += i % 3;
+            writer.onTaskDistributed(i, i % 2 == 0 ? null : ImmutableList.of(String.valueOf(i)));
+            writer.onOfferDone(i, i + 1, i % 5 == 0);
+        }
+        assertTrue(writer.getSize() > 4 * 1024);
+        writer.close();
+
+        TraceReader reader = new TraceReader(file);
+        TraceRecord record = new TraceRecord();
+        long time = 1000L;
+        for (long i = 0; i < 500; i++) {
+            time += i % 3;
+            assertTrue(reader.next(record));
+            assertEquals(record.getType(), TraceRecord.Type.DISTRIBUTE);
+            assertEquals(record.getTime(), time);
+            assertEquals(record.getTaskId(), i);
+            if (i % 2 == 0) {
+                assertEquals(record.getQueuesCount(), -1);
+            } else {
+                assertEquals(record.getQueuesCount(), 1);
+                assertEquals(record.getQueueId(0), i);
+            }
+            assertTrue(reader.next(record));
+            assertEquals(record.getType(), TraceRecord.Type.OFFER);
+            assertEquals(record.getProcId(), i + 1);
+            assertEquals(record.isAccepted(), i % 5 == 0);
+        }
+        assertFalse(reader.next(record));
+        reader.close();
+    }
+
+    @Test
+    public void notATrace() throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write("not a trace".getBytes("UTF-8"));
+        fos.close();
+        try {
+            new TraceReader(file);
+            fail("The file is not a trace.");
+        } catch (IOException ioe) {
+            assertTrue(ioe.getMessage().contains("is not an ATD trace"), ioe.getMessage());
+        }
+    }
+
+    @Test(expectedExceptions = { EOFException.class })
+    public void tooShortForTrace() throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(new byte[] { 0x4D, 0x34 });
+        fos.close();
+        new TraceReader(file);
+    }
+
+    private void assertRecord(TraceReader reader, TraceRecord record, TraceRecord.Type type, long taskId,
+            long procId) throws IOException {
+        assertTrue(reader.next(record));
+        assertEquals(record.getType(), type);
+        assertEquals(record.getTime(), 1000L);
+        assertEquals(record.getTaskId(), taskId);
+        assertEquals(record.getProcId(), procId);
+    }
+}
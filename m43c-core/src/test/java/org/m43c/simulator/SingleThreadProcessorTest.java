@@ -1,8 +1,23 @@
 package org.m43c.simulator;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.google.common.base.Predicate;
+
+import static org.testng.Assert.*;
+
 public class SingleThreadProcessorTest {
 
     private SingleThreadProcessor processor;
@@ -42,4 +57,457 @@ public class SingleThreadProcessorTest {
             }
         });
     }
+    
+    @Test(timeOut=1000L)
+    public void cancelScheduled() throws InterruptedException {
+        final List<String> trace = new ArrayList<String>();
+        processor.run(new Process() {
+            @Override
+            public long run() {
+                ScheduledProcess timeout = processor.schedule(new TraceProcess(trace, "timeout"), 5L);
+                processor.schedule(new TraceProcess(trace, "event"), 1L);
+                assertTrue(timeout.isScheduled());
+                assertTrue(timeout.cancel());
+                assertFalse(timeout.isScheduled());
+                assertFalse(timeout.cancel());
+                return -1L;
+            }
+        });
+        assertEquals(trace.size(), 1);
+        assertEquals(trace.get(0), "event");
+    }
+    
+    @Test(timeOut=1000L)
+    public void rescheduleChangesOrder() throws InterruptedException {
+        final List<String> trace = new ArrayList<String>();
+        processor.run(new Process() {
+            @Override
+            public long run() {
+                ScheduledProcess first = processor.schedule(new TraceProcess(trace, "first"), 1L);
+                processor.schedule(new TraceProcess(trace, "second"), 3L);
+                first.reschedule(10L);
+                return -1L;
+            }
+        });
+        assertEquals(trace.size(), 2);
+        assertEquals(trace.get(0), "second");
+        assertEquals(trace.get(1), "first");
+    }
+    
+    @Test(timeOut=1000L)
+    public void rescheduleExecutedProcess() throws InterruptedException {
+        final List<String> trace = new ArrayList<String>();
+        processor.run(new Process() {
+            ScheduledProcess handle;
+            
+            @Override
+            public long run() {
+                if (handle == null) {
+                    handle = processor.schedule(new TraceProcess(trace, "event"), 0L);
+                    return 2L;
+                }
+                assertFalse(handle.isScheduled());
+                handle.reschedule(0L);
+                return -1L;
+            }
+        });
+        assertEquals(trace.size(), 2);
+    }
+    
+    @Test(timeOut=1000L)
+    public void cancelWhileRunning() throws InterruptedException {
+        final int[] counter = new int[1];
+        processor.run(new Process() {
+            ScheduledProcess self;
+            
+            @Override
+            public long run() {
+                if (self == null) {
+                    self = processor.schedule(this, 0L);
+                    return -1L;
+                }
+                counter[0]++;
+                self.cancel();
+                return 0L;
+            }
+        });
+        assertEquals(counter[0], 1);
+    }
+    
+    @Test(timeOut=1000L)
+    public void sameTimeFifo() throws InterruptedException {
+        final List<String> trace = new ArrayList<String>();
+        processor.run(new Process() {
+            @Override
+            public long run() {
+                for (int i = 0; i < 20; i++) {
+                    processor.schedule(new TraceProcess(trace, String.valueOf(i)), 2L);
+                }
+                return -1L;
+            }
+        });
+        assertEquals(trace.size(), 20);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(trace.get(i), String.valueOf(i));
+        }
+    }
+    
+    @Test(timeOut=2000L)
+    public void postWakesUpSleepingProcessor() throws InterruptedException {
+        final List<String> trace = new ArrayList<String>();
+        final ScheduledProcess[] longSleep = new ScheduledProcess[1];
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 3; i++) {
+                    final String name = "posted" + i;
+                    processor.post(new Process() {
+                        @Override
+                        public long run() {
+                            trace.add(name);
+                            if (trace.size() == 3) {
+                                longSleep[0].cancel();
+                            }
+                            return -1L;
+                        }
+                    });
+                }
+            }
+        }).start();
+        processor.run(new Process() {
+            @Override
+            public long run() {
+                longSleep[0] = processor.schedule(new TraceProcess(trace, "longSleep"), 100000L);
+                return -1L;
+            }
+        });
+        assertEquals(trace.size(), 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(trace.get(i), "posted" + i);
+        }
+    }
+    
+    @Test(timeOut=1000L)
+    public void postBeforeRun() throws InterruptedException {
+        final List<String> trace = new ArrayList<String>();
+        processor.post(new TraceProcess(trace, "posted"));
+        processor.run(new TraceProcess(trace, "initial"));
+        assertEquals(trace.size(), 2);
+    }
+    
+    @Test(expectedExceptions={NullPointerException.class})
+    public void postNPE() {
+        processor.post(null);
+    }
+    
+    @Test(timeOut=5000L)
+    public void checkpointAndFork() throws InterruptedException, IOException {
+        final Counter counter = new Counter(processor, 10, 5);
+        processor.run(new Process() {
+            @Override
+            public long run() {
+                counter.self = processor.schedule(counter, 0L);
+                return -1L;
+            }
+        });
+        assertEquals(Counter.invocations.getAndSet(0), 10);
+        assertEquals(counter.count, 10);
+        assertNotNull(Counter.checkpoint);
+        Counter.results.clear();
+        
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Counter.checkpoint.writeTo(baos);
+        final Checkpoint checkpoint = Checkpoint.readFrom(new ByteArrayInputStream(baos.toByteArray()),
+                new Predicate<String>() {
+                    @Override
+                    public boolean apply(String className) {
+                        return Counter.class.getName().equals(className);
+                    }
+                });
+        assertEquals(checkpoint.getTime(), Counter.checkpoint.getTime());
+        Counter.checkpoint = null;
+        
+        Thread[] forks = new Thread[4];
+        for (int i = 0; i < forks.length; i++) {
+            forks[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        new SingleThreadProcessor().runFrom(checkpoint);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            forks[i].start();
+        }
+        for (Thread fork: forks) {
+            fork.join();
+        }
+        assertEquals(Counter.invocations.get(), 5 * forks.length);
+        assertEquals(Counter.results.size(), forks.length);
+        for (Integer result: Counter.results) {
+            assertEquals(result.intValue(), 10);
+        }
+        Counter.results.clear();
+    }
+    
+    @Test(expectedExceptions={IllegalStateException.class})
+    public void checkpointNotSerializable() throws InterruptedException {
+        processor.run(new Process() {
+            @Override
+            public long run() {
+                processor.schedule(new TraceProcess(new ArrayList<String>(), "notSerializable"), 1L);
+                processor.checkpoint();
+                return -1L;
+            }
+        });
+    }
+    
+    @Test(timeOut=5000L)
+    public void stepsGiveSameResultAsRun() throws InterruptedException {
+        List<String> expected = runModel();
+        
+        SingleThreadProcessor stepping = fullThrottleProcessor();
+        Model model = new Model(stepping);
+        stepping.load(model);
+        while (stepping.step(3) > 0);
+        assertEquals(model.trace, expected);
+    }
+    
+    @Test(timeOut=5000L)
+    public void runUntilGivesSameResultAsRun() throws InterruptedException {
+        List<String> expected = runModel();
+        
+        SingleThreadProcessor stepping = fullThrottleProcessor();
+        Model model = new Model(stepping);
+        stepping.load(model);
+        for (long next = stepping.getNextExecTime(); next >= 0L; next = stepping.getNextExecTime()) {
+            stepping.runUntil(next + 15L);
+        }
+        assertEquals(model.trace, expected);
+    }
+    
+    @Test(timeOut=5000L)
+    public void advanceGivesSameResultAsRun() throws InterruptedException {
+        List<String> expected = runModel();
+        
+        SingleThreadProcessor stepping = fullThrottleProcessor();
+        Model model = new Model(stepping);
+        stepping.load(model);
+        int total = 0;
+        for (long next = stepping.getNextExecTime(); next >= 0L; next = stepping.getNextExecTime()) {
+            int executed = stepping.advance(next + 50L, 4);
+            assertTrue(executed > 0 && executed <= 4);
+            total += executed;
+        }
+        assertEquals(model.trace, expected);
+        assertEquals(total, model.executed);
+    }
+    
+    @Test(expectedExceptions = { IllegalStateException.class })
+    public void checkpointClassNotAccepted() throws IOException {
+        processor.load(new Counter(processor, 10, 5));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        processor.checkpoint().writeTo(baos);
+        Checkpoint checkpoint = Checkpoint.readFrom(new ByteArrayInputStream(baos.toByteArray()));
+        new SingleThreadProcessor().loadFrom(checkpoint);
+    }
+    
+    @Test(expectedExceptions = { IOException.class })
+    public void checkpointNegativeSize() throws IOException {
+        Checkpoint.readFrom(new ByteArrayInputStream(corruptedCheckpoint(-1)));
+    }
+    
+    @Test(expectedExceptions = { IOException.class })
+    public void checkpointTruncated() throws IOException {
+        Checkpoint.readFrom(new ByteArrayInputStream(corruptedCheckpoint(Integer.MAX_VALUE)));
+    }
+    
+    private byte[] corruptedCheckpoint(int size) throws IOException {
+        processor.load(new Counter(processor, 10, 5));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        processor.checkpoint().writeTo(baos);
+        byte[] data = baos.toByteArray();
+        ByteArrayOutputStream corrupted = new ByteArrayOutputStream();
+        corrupted.write(data, 0, 20);
+        new DataOutputStream(corrupted).writeInt(size);
+        corrupted.write(data, 24, data.length - 24);
+        return corrupted.toByteArray();
+    }
+    
+    @Test(timeOut=1000L)
+    public void runUntilStopsAtTime() throws InterruptedException {
+        processor.setAcceleration(SingleThreadProcessor.FULL_THROTTLE);
+        final List<String> trace = new ArrayList<String>();
+        processor.load(new Process() {
+            @Override
+            public long run() {
+                processor.schedule(new TraceProcess(trace, "early"), 10L);
+                processor.schedule(new TraceProcess(trace, "late"), 1000L);
+                return -1L;
+            }
+        });
+        long start = processor.getNextExecTime();
+        assertEquals(processor.runUntil(start + 500L), 2);
+        assertEquals(trace.size(), 1);
+        assertEquals(processor.step(10), 1);
+        assertEquals(trace.size(), 2);
+        assertEquals(processor.getNextExecTime(), -1L);
+    }
+    
+    @Test(timeOut=1000L)
+    public void runUntilMovesTime() throws InterruptedException {
+        processor.setAcceleration(SingleThreadProcessor.FULL_THROTTLE);
+        final List<String> trace = new ArrayList<String>();
+        processor.load(new TraceProcess(trace, "initial"));
+        long start = processor.getNextExecTime();
+        assertEquals(processor.runUntil(start + 500L), 1);
+        long now = processor.getTimeSource().currentTimeMillis();
+        assertTrue(now >= start + 500L && now < start + 510L);
+        assertEquals(processor.runUntil(start + 1000L), 0);
+        now = processor.getTimeSource().currentTimeMillis();
+        assertTrue(now >= start + 1000L && now < start + 1010L);
+    }
+    
+    @Test(timeOut=1000L)
+    public void nextExecTimeOfPosted() throws InterruptedException {
+        processor.setAcceleration(SingleThreadProcessor.FULL_THROTTLE);
+        final List<String> trace = new ArrayList<String>();
+        processor.load(new TraceProcess(trace, "initial"));
+        assertEquals(processor.step(10), 1);
+        assertEquals(processor.getNextExecTime(), -1L);
+        processor.post(new TraceProcess(trace, "posted"));
+        assertTrue(processor.getNextExecTime() >= 0L);
+        assertEquals(processor.step(10), 1);
+        assertEquals(trace.get(1), "posted");
+    }
+    
+    private List<String> runModel() throws InterruptedException {
+        SingleThreadProcessor running = fullThrottleProcessor();
+        Model model = new Model(running);
+        running.run(model);
+        assertTrue(model.trace.size() > 100);
+        return model.trace;
+    }
+    
+    private static SingleThreadProcessor fullThrottleProcessor() {
+        SingleThreadProcessor result = new SingleThreadProcessor();
+        result.setAcceleration(SingleThreadProcessor.FULL_THROTTLE);
+        return result;
+    }
+    
+    private static class Model implements Process {
+        
+        private final SingleThreadProcessor processor;
+        
+        private final Random random = new Random(43L);
+        
+        private final List<String> trace = new ArrayList<String>();
+        
+        private long startTime;
+        
+        private int executed;
+        
+        Model(SingleThreadProcessor processor) {
+            this.processor = processor;
+        }
+
+        @Override
+        public long run() {
+            executed++;
+            startTime = processor.getTimeSource().currentTimeMillis();
+            for (int i = 0; i < 5; i++) {
+                final String name = "worker" + i;
+                processor.schedule(new Process() {
+                    int iterations;
+                    
+                    ScheduledProcess timeout;
+                    
+                    @Override
+                    public long run() {
+                        executed++;
+                        trace.add(name + "@" + (processor.getTimeSource().currentTimeMillis() - startTime));
+                        if (timeout != null) {
+                            timeout.cancel();
+                        }
+                        timeout = processor.schedule(new Process() {
+                            @Override
+                            public long run() {
+                                executed++;
+                                trace.add(name + " timeout");
+                                return -1L;
+                            }
+                        }, random.nextInt(30));
+                        return ++iterations < 40 ? random.nextInt(25) : -1L;
+                    }
+                }, random.nextInt(10));
+            }
+            return -1L;
+        }
+    }
+    
+    private static class Counter implements Process, Serializable {
+        
+        private static final long serialVersionUID = 1L;
+        
+        static final AtomicInteger invocations = new AtomicInteger();
+        
+        static final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+        
+        static volatile Checkpoint checkpoint;
+        
+        private final SingleThreadProcessor processor;
+        
+        private final int limit;
+        
+        private final int checkpointAt;
+        
+        private ScheduledProcess self;
+        
+        private int count;
+        
+        Counter(SingleThreadProcessor processor, int limit, int checkpointAt) {
+            this.processor = processor;
+            this.limit = limit;
+            this.checkpointAt = checkpointAt;
+        }
+
+        @Override
+        public long run() {
+            invocations.incrementAndGet();
+            if (++count == limit) {
+                results.add(count);
+                return -1L;
+            }
+            self.reschedule(1L);
+            if (count == checkpointAt) {
+                checkpoint = processor.checkpoint();
+            }
+            return -1L;
+        }
+    }
+    
+    private static class TraceProcess implements Process {
+        
+        private final List<String> trace;
+        
+        private final String name;
+        
+        TraceProcess(List<String> trace, String name) {
+            this.trace = trace;
+            this.name = name;
+        }
+
+        @Override
+        public long run() {
+            trace.add(name);
+            return -1L;
+        }
+    }
 }
@@ -0,0 +1,22 @@
+package org.m43c.simulator.stats;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class CounterTest {
+
+    @Test
+    public void countAndMerge() {
+        Counter c1 = new Counter();
+        c1.increment();
+        c1.add(5L);
+        assertEquals(c1.get(), 6L);
+        Counter c2 = new Counter();
+        c2.increment();
+        c1.merge(c2);
+        assertEquals(c1.get(), 7L);
+        assertEquals(c2.get(), 1L);
+        assertEquals(c1.toString(), "7");
+    }
+}
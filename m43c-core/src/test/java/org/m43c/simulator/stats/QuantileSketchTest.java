@@ -0,0 +1,66 @@
+package org.m43c.simulator.stats;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class QuantileSketchTest {
+
+    @Test
+    public void smallValuesAreExact() {
+        QuantileSketch sketch = new QuantileSketch(4);
+        for (int i = 1; i <= 10; i++) {
+            sketch.record(i);
+        }
+        assertEquals(sketch.getCount(), 10L);
+        assertEquals(sketch.getQuantile(0.0), 1L);
+        assertEquals(sketch.getQuantile(0.5), 5L);
+        assertEquals(sketch.getQuantile(1.0), 10L);
+        assertEquals(sketch.getMean(), 5.5, 0.0001);
+    }
+
+    @Test
+    public void relativeError() {
+        Random rnd = new Random(1L);
+        long[] values = new long[10000];
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) (-Math.log(1.0 - rnd.nextDouble()) * 30000.0);
+            sketch.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double q : new double[] { 0.1, 0.5, 0.9, 0.99 }) {
+            long exact = values[(int) Math.ceil(q * values.length) - 1];
+            assertEquals(sketch.getQuantile(q), exact, exact / 32.0 + 1.0);
+        }
+    }
+
+    @Test
+    public void merge() {
+        QuantileSketch s1 = new QuantileSketch();
+        QuantileSketch s2 = new QuantileSketch();
+        QuantileSketch all = new QuantileSketch();
+        for (int i = 0; i < 1000; i++) {
+            (i % 2 == 0 ? s1 : s2).record(i * 7L);
+            all.record(i * 7L);
+        }
+        s1.merge(s2);
+        assertEquals(s1.getCount(), all.getCount());
+        assertEquals(s1.getMin(), all.getMin());
+        assertEquals(s1.getMax(), all.getMax());
+        assertEquals(s1.getQuantile(0.95), all.getQuantile(0.95));
+    }
+
+    @Test(expectedExceptions = { IllegalArgumentException.class })
+    public void mergeDifferentPrecision() {
+        new QuantileSketch(4).merge(new QuantileSketch(5));
+    }
+
+    @Test(expectedExceptions = { IllegalArgumentException.class })
+    public void negativeValue() {
+        new QuantileSketch().record(-1L);
+    }
+}
@@ -0,0 +1,50 @@
+package org.m43c.simulator.stats;
+
+import org.jrivets.env.TimeSource;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class ServiceLevelTrackerTest {
+
+    private long now;
+
+    private final TimeSource timeSource = new TimeSource() {
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    };
+
+    @Test
+    public void slicedByInterval() {
+        ServiceLevelTracker tracker = new ServiceLevelTracker(timeSource, 1000L, 100L, 3, 20L);
+        now = 1010L;
+        tracker.served(10L);
+        tracker.served(30L);
+        now = 1150L;
+        tracker.served(20L);
+        tracker.abandoned(5L);
+        tracker.abandoned(50L);
+        now = 5000L;
+        tracker.served(1L);
+
+        assertEquals(tracker.getServiceLevel(0), 0.5, 0.0001);
+        assertEquals(tracker.getServiceLevel(1), 0.5, 0.0001);
+        assertEquals(tracker.getShortAbandoned(1), 1L);
+        assertEquals(tracker.getServiceLevel(2), 1.0, 0.0001);
+        assertEquals(tracker.getServiceLevel(), 0.6, 0.0001);
+    }
+
+    @Test
+    public void merge() {
+        ServiceLevelTracker t1 = new ServiceLevelTracker(timeSource, 0L, 100L, 2, 20L);
+        ServiceLevelTracker t2 = new ServiceLevelTracker(timeSource, 0L, 100L, 2, 20L);
+        now = 150L;
+        t1.served(10L);
+        t2.served(30L);
+        t1.merge(t2);
+        assertEquals(t1.getTotal(1), 2L);
+        assertEquals(t1.getServiceLevel(1), 0.5, 0.0001);
+    }
+}
@@ -0,0 +1,48 @@
+package org.m43c.simulator.stats;
+
+import org.jrivets.env.TimeSource;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class TimeWeightedAverageTest {
+
+    private long now;
+
+    private final TimeSource timeSource = new TimeSource() {
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    };
+
+    @Test
+    public void averageOverTime() {
+        TimeWeightedAverage twa = new TimeWeightedAverage(timeSource);
+        now = 0L;
+        twa.set(2L);
+        now = 10L;
+        twa.add(2L);
+        now = 40L;
+        twa.set(0L);
+        assertEquals(twa.getAverage(), 3.5, 0.0001);
+        assertEquals(twa.getMax(), 4L);
+
+        TimeWeightedAverage other = new TimeWeightedAverage(timeSource);
+        other.set(1L);
+        now = 80L;
+        other.set(1L);
+        twa.merge(other);
+        assertEquals(twa.getAverage(), 2.25, 0.0001);
+    }
+
+    @Test
+    public void noTimeNoAverage() {
+        TimeWeightedAverage twa = new TimeWeightedAverage(timeSource);
+        assertEquals(twa.getAverage(), 0.0, 0.0001);
+        twa.set(5L);
+        assertEquals(twa.getAverage(), 0.0, 0.0001);
+        assertEquals(twa.getLevel(), 5L);
+        assertEquals(twa.getDuration(), 0L);
+    }
+}